@@ -18,32 +18,61 @@
 package org.pentaho.agilebi.platform;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.PrintWriter;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.util.logging.Logger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.sql.DataSource;
 
-import org.pentaho.di.core.database.Database;
 import org.pentaho.di.core.database.DatabaseMeta;
-import org.pentaho.di.core.exception.KettleException;
-import org.pentaho.metadata.model.Domain;
-import org.pentaho.metadata.model.SqlPhysicalModel;
-import org.pentaho.metadata.util.ThinModelConverter;
-import org.pentaho.metadata.util.XmiParser;
 import org.pentaho.platform.api.data.DBDatasourceServiceException;
 import org.pentaho.platform.api.data.IDBDatasourceService;
 
 public class AgileBIDatasourceService implements IDBDatasourceService {
 
+  public static final String SERVICE_NAME = "agilebi"; //$NON-NLS-1$
+
+  private DatasourcePoolConfig poolConfig = new DatasourcePoolConfig();
+
+  /**
+   * datasources by XMI path. an entry is only used while the XMI file still has the
+   * modification time and size it had when it was parsed. the entry is added before its pool
+   * is built so that concurrent requests wait for the first one instead of each building a
+   * pool of their own.
+   */
+  private final Map<String, CachedDatasource> cache = new HashMap<String, CachedDatasource>();
+
+  public DatasourcePoolConfig getPoolConfig() {
+    return poolConfig;
+  }
+
+  public void setPoolConfig(DatasourcePoolConfig poolConfig) {
+    this.poolConfig = poolConfig;
+  }
+
   public void clearCache() {
-    // TODO impl cache
+    List<CachedDatasource> evicted;
+    synchronized (cache) {
+      evicted = new ArrayList<CachedDatasource>(cache.values());
+      cache.clear();
+    }
+    for (CachedDatasource cached : evicted) {
+      cached.close();
+    }
   }
 
   public void clearDataSource(String dsName) {
-    // TODO impl cache
+    CachedDatasource evicted;
+    synchronized (cache) {
+      evicted = cache.remove(dsName);
+    }
+    if (evicted != null) {
+      evicted.close();
+    }
   }
 
   public String getDSBoundName(String dsName) throws DBDatasourceServiceException {
@@ -55,76 +84,100 @@ public class AgileBIDatasourceService implements IDBDatasourceService {
   }
 
   public DataSource getDataSource(String dsName) throws DBDatasourceServiceException {
-    Domain domain = null;
-    try {
-      XmiParser parser = new XmiParser();
-      FileInputStream fis = new FileInputStream(new File(dsName));
-      domain = parser.parseXmi(fis);
-    } catch (Exception e) {
-      throw new DBDatasourceServiceException(e);
-    }
-
-    if (domain.getPhysicalModels().size() == 0 || 
-        !(domain.getPhysicalModels().get(0) instanceof SqlPhysicalModel)) {
-      throw new DBDatasourceServiceException("No SQL Physical Model Available");
-      
-    }
-    
-    SqlPhysicalModel model = (SqlPhysicalModel)domain.getPhysicalModels().get(0);
-    
-    DatabaseMeta databaseMeta = ThinModelConverter.convertToLegacy(model.getId(), model.getDatasource());
-    return new DatabaseMetaDataSource(databaseMeta);
+    return getPool(dsName).getDataSource();
   }
 
-  class DatabaseMetaDataSource implements DataSource {
+  /**
+   * Returns the connection the datasource was created from, the XMI is only parsed when
+   * it isn't cached yet or has changed on disk.
+   */
+  public DatabaseMeta getDatabaseMeta(String dsName) throws DBDatasourceServiceException {
+    return getPool(dsName).getDatabaseMeta();
+  }
 
-    DatabaseMeta databaseMeta;
-    
-    public DatabaseMetaDataSource(DatabaseMeta databaseMeta) {
-      this.databaseMeta = databaseMeta;
-    }
-    
-    public Connection getConnection() throws SQLException {
-      Database database = new Database(databaseMeta);
-      try {
-        database.connect();
-      } catch (KettleException e) {
-        e.printStackTrace();
-        throw new SQLException(e.getMessage());
+  private DatasourcePool getPool(final String dsName) throws DBDatasourceServiceException {
+    File xmiFile = new File(dsName);
+    long lastModified = xmiFile.lastModified();
+    long size = xmiFile.length();
+
+    CachedDatasource cached;
+    CachedDatasource stale = null;
+    boolean created = false;
+    synchronized (cache) {
+      cached = cache.get(dsName);
+      if (cached == null || !cached.matches(lastModified, size)) {
+        stale = cached;
+        cached = new CachedDatasource(lastModified, size, new FutureTask<DatasourcePool>(new Callable<DatasourcePool>() {
+          public DatasourcePool call() throws Exception {
+            return createPool(dsName);
+          }
+        }));
+        cache.put(dsName, cached);
+        created = true;
       }
-      return database.getConnection();
     }
-
-    public Connection getConnection(String username, String password) throws SQLException {
-      return null;
+    if (stale != null) {
+      stale.close();
     }
-
-    public PrintWriter getLogWriter() throws SQLException {
-      return null;
+    if (created) {
+      // we won the race, build the pool on this thread
+      cached.pool.run();
     }
 
-    public int getLoginTimeout() throws SQLException {
-      return 0;
+    try {
+      return cached.pool.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DBDatasourceServiceException(e);
+    } catch (ExecutionException e) {
+      // forget the failure so that the next request tries again
+      synchronized (cache) {
+        if (cache.get(dsName) == cached) {
+          cache.remove(dsName);
+        }
+      }
+      if (e.getCause() instanceof DBDatasourceServiceException) {
+        throw (DBDatasourceServiceException) e.getCause();
+      }
+      throw new DBDatasourceServiceException(e.getCause());
     }
+  }
 
-    public void setLogWriter(PrintWriter out) throws SQLException {
-    }
+  private DatasourcePool createPool(String dsName) throws DBDatasourceServiceException {
+    DatabaseMeta databaseMeta = XmiDatabaseMetaLoader.load(dsName);
+    DatasourcePool pool = new DatasourcePool(SERVICE_NAME, dsName, databaseMeta, new DatabaseMetaConnectionFactory(
+        databaseMeta), poolConfig.forDatabaseMeta(databaseMeta));
+    pool.register();
+    return pool;
+  }
+
+  private static class CachedDatasource {
+
+    final long lastModified;
+
+    final long size;
+
+    final FutureTask<DatasourcePool> pool;
 
-    public void setLoginTimeout(int seconds) throws SQLException {
+    CachedDatasource(long lastModified, long size, FutureTask<DatasourcePool> pool) {
+      this.lastModified = lastModified;
+      this.size = size;
+      this.pool = pool;
     }
-   
-    public boolean  isWrapperFor(Class<?> iface) {
-      return false;
+
+    boolean matches(long lastModified, long size) {
+      return this.lastModified == lastModified && this.size == size;
     }
-    
-    public <T> T unwrap(Class<T> iface) {
-      return null;
-    } 
 
-    public Logger getParentLogger() {
-      return null;
+    void close() {
+      try {
+        pool.get().close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // the pool was never created, nothing to close
+      }
     }
-    
   }
-  
+
 }
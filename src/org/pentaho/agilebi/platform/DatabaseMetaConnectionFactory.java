@@ -0,0 +1,50 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.pentaho.di.core.database.Database;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * Creates physical connections for a connection pool through Kettle's {@link Database}, so
+ * that driver loading, connection options and variables behave as they do in Spoon.
+ */
+public class DatabaseMetaConnectionFactory implements ConnectionFactory {
+
+  protected final DatabaseMeta databaseMeta;
+
+  public DatabaseMetaConnectionFactory(DatabaseMeta databaseMeta) {
+    this.databaseMeta = databaseMeta;
+  }
+
+  public Connection createConnection() throws SQLException {
+    Database database = new Database(databaseMeta);
+    try {
+      database.connect();
+    } catch (KettleException e) {
+      throw new SQLException(e.getMessage(), e);
+    }
+    return database.getConnection();
+  }
+
+}
@@ -0,0 +1,237 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * A bounded connection pool for a single datasource. Every datasource gets its own pool,
+ * connection factory and statement pool so that models don't compete for connections
+ * or end up connected to each other's database.
+ */
+public class DatasourcePool {
+
+  private static LogChannelInterface log = new LogChannel(DatasourcePool.class.toString());
+
+  private static final ExecutorService WARM_UP_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "agilebi-pool-warmup-" + count.incrementAndGet()); //$NON-NLS-1$
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
+  private final String service;
+
+  private final String name;
+
+  private final DatabaseMeta databaseMeta;
+
+  private final DatasourcePoolConfig config;
+
+  private final GenericObjectPool connectionPool;
+
+  private final PoolingDataSource dataSource;
+
+  private final DatasourcePoolMetrics metrics;
+
+  private volatile boolean closed = false;
+
+  /**
+   * @param service
+   *          the datasource service owning the pool, pools are registered per service
+   */
+  public DatasourcePool(String service, String name, DatabaseMeta databaseMeta, ConnectionFactory connectionFactory,
+      DatasourcePoolConfig config) {
+    this.service = service;
+    this.name = name;
+    this.databaseMeta = databaseMeta;
+    this.config = config;
+
+    metrics = new DatasourcePoolMetrics(this);
+
+    connectionPool = new MeteredObjectPool();
+    config.configure(connectionPool);
+
+    KeyedObjectPoolFactory statementPoolFactory = null;
+    if (config.isPoolPreparedStatements() && config.getMaxOpenPreparedStatements() > 0) {
+      statementPoolFactory = new StatementPoolFactory(config.getMaxOpenPreparedStatements(), metrics);
+    }
+
+    // registers itself as the factory of the connection pool
+    new ValidatingPoolableConnectionFactory(new MeteredConnectionFactory(connectionFactory), connectionPool,
+        statementPoolFactory, databaseMeta, config);
+
+    dataSource = new PoolingDataSource(connectionPool);
+  }
+
+  /**
+   * Publishes the pool's metrics, call this once the pool is the one its service hands out.
+   */
+  public void register() {
+    DatasourcePoolRegistry.register(metrics);
+  }
+
+  /**
+   * Opens the configured number of initial connections in the background. Callers don't
+   * wait for this, a borrow that finds no idle connection simply opens one itself.
+   */
+  public void warmUp() {
+    final int target = config.getWarmUpSize();
+    if (target <= 0) {
+      return;
+    }
+    final long deadline = System.currentTimeMillis() + config.getWarmUpDeadlineMillis();
+    final AtomicInteger started = new AtomicInteger();
+    int workers = Math.max(1, Math.min(config.getWarmUpConcurrency(), target));
+    for (int i = 0; i < workers; i++) {
+      WARM_UP_EXECUTOR.execute(new Runnable() {
+        public void run() {
+          while (!closed && started.incrementAndGet() <= target) {
+            if (System.currentTimeMillis() > deadline) {
+              log.logBasic("Warm-up deadline passed for " + name + ", leaving the rest of the pool to demand"); //$NON-NLS-1$ //$NON-NLS-2$
+              return;
+            }
+            if (connectionPool.getNumIdle() + connectionPool.getNumActive() >= target) {
+              return;
+            }
+            try {
+              connectionPool.addObject();
+            } catch (Exception e) {
+              log.logError("Could not warm up connection pool for " + name, e); //$NON-NLS-1$
+              return;
+            }
+          }
+        }
+      });
+    }
+  }
+
+  public void close() {
+    closed = true;
+    DatasourcePoolRegistry.unregister(metrics);
+    try {
+      connectionPool.close();
+    } catch (Exception e) {
+      log.logError("Could not close connection pool for " + name, e); //$NON-NLS-1$
+    }
+  }
+
+  public String getService() {
+    return service;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public DatabaseMeta getDatabaseMeta() {
+    return databaseMeta;
+  }
+
+  public DatasourcePoolConfig getConfig() {
+    return config;
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+  public DatasourcePoolMetrics getMetrics() {
+    return metrics;
+  }
+
+  public int getNumActive() {
+    return connectionPool.getNumActive();
+  }
+
+  public int getNumIdle() {
+    return connectionPool.getNumIdle();
+  }
+
+  /**
+   * times borrows and counts the threads waiting for a connection.
+   */
+  private class MeteredObjectPool extends GenericObjectPool {
+
+    @Override
+    public Object borrowObject() throws Exception {
+      long start = metrics.borrowing();
+      try {
+        Object connection = super.borrowObject();
+        metrics.borrowed(start);
+        return connection;
+      } catch (NoSuchElementException e) {
+        metrics.borrowFailed(true);
+        throw e;
+      } catch (Exception e) {
+        metrics.borrowFailed(false);
+        throw e;
+      }
+    }
+
+  }
+
+  /**
+   * times the creation of physical connections and counts failures.
+   */
+  private class MeteredConnectionFactory implements ConnectionFactory {
+
+    private final ConnectionFactory delegate;
+
+    MeteredConnectionFactory(ConnectionFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    public Connection createConnection() throws SQLException {
+      long start = System.nanoTime();
+      try {
+        Connection connection = delegate.createConnection();
+        metrics.connectionCreated(System.nanoTime() - start);
+        return connection;
+      } catch (SQLException e) {
+        metrics.connectionFailed();
+        throw e;
+      } catch (RuntimeException e) {
+        metrics.connectionFailed();
+        throw e;
+      }
+    }
+
+  }
+
+}
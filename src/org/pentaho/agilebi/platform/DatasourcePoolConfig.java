@@ -0,0 +1,350 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.Properties;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.database.DatabaseMeta;
+
+/**
+ * Sizing and eviction settings for a single datasource connection pool. An instance is
+ * injected into the datasource service through Spring and acts as the default for every
+ * datasource; the connection pooling settings of the individual {@link DatabaseMeta}
+ * override it (see {@link #forDatabaseMeta(DatabaseMeta)}).
+ * 
+ * The property names follow the commons-dbcp conventions, which are also the names used
+ * on the "Pooling" tab of a Kettle database connection.
+ */
+public class DatasourcePoolConfig {
+
+  public static final String MAX_ACTIVE = "maxActive"; //$NON-NLS-1$
+
+  public static final String MAX_IDLE = "maxIdle"; //$NON-NLS-1$
+
+  public static final String MIN_IDLE = "minIdle"; //$NON-NLS-1$
+
+  public static final String INITIAL_SIZE = "initialSize"; //$NON-NLS-1$
+
+  public static final String MAX_WAIT = "maxWait"; //$NON-NLS-1$
+
+  public static final String TIME_BETWEEN_EVICTION_RUNS_MILLIS = "timeBetweenEvictionRunsMillis"; //$NON-NLS-1$
+
+  public static final String MIN_EVICTABLE_IDLE_TIME_MILLIS = "minEvictableIdleTimeMillis"; //$NON-NLS-1$
+
+  public static final String NUM_TESTS_PER_EVICTION_RUN = "numTestsPerEvictionRun"; //$NON-NLS-1$
+
+  public static final String VALIDATION_QUERY = "validationQuery"; //$NON-NLS-1$
+
+  public static final String TEST_ON_BORROW = "testOnBorrow"; //$NON-NLS-1$
+
+  public static final String TEST_WHILE_IDLE = "testWhileIdle"; //$NON-NLS-1$
+
+  public static final String POOL_PREPARED_STATEMENTS = "poolPreparedStatements"; //$NON-NLS-1$
+
+  public static final String MAX_OPEN_PREPARED_STATEMENTS = "maxOpenPreparedStatements"; //$NON-NLS-1$
+
+  public static final String WARM_UP_CONCURRENCY = "warmUpConcurrency"; //$NON-NLS-1$
+
+  public static final String WARM_UP_DEADLINE_MILLIS = "warmUpDeadlineMillis"; //$NON-NLS-1$
+
+  private int maxActive = 8;
+
+  private int maxIdle = 8;
+
+  private int minIdle = 0;
+
+  private int initialSize = 5;
+
+  private long maxWait = 30000L;
+
+  private long timeBetweenEvictionRunsMillis = 60000L;
+
+  private long minEvictableIdleTimeMillis = 300000L;
+
+  private int numTestsPerEvictionRun = 3;
+
+  private String validationQuery = null;
+
+  private int validationTimeoutSeconds = 5;
+
+  private boolean testOnBorrow = false;
+
+  private boolean testWhileIdle = true;
+
+  private boolean poolPreparedStatements = true;
+
+  private int maxOpenPreparedStatements = 50;
+
+  private int warmUpConcurrency = 2;
+
+  private long warmUpDeadlineMillis = 60000L;
+
+  public DatasourcePoolConfig() {
+  }
+
+  public DatasourcePoolConfig(DatasourcePoolConfig other) {
+    this.maxActive = other.maxActive;
+    this.maxIdle = other.maxIdle;
+    this.minIdle = other.minIdle;
+    this.initialSize = other.initialSize;
+    this.maxWait = other.maxWait;
+    this.timeBetweenEvictionRunsMillis = other.timeBetweenEvictionRunsMillis;
+    this.minEvictableIdleTimeMillis = other.minEvictableIdleTimeMillis;
+    this.numTestsPerEvictionRun = other.numTestsPerEvictionRun;
+    this.validationQuery = other.validationQuery;
+    this.validationTimeoutSeconds = other.validationTimeoutSeconds;
+    this.testOnBorrow = other.testOnBorrow;
+    this.testWhileIdle = other.testWhileIdle;
+    this.poolPreparedStatements = other.poolPreparedStatements;
+    this.maxOpenPreparedStatements = other.maxOpenPreparedStatements;
+    this.warmUpConcurrency = other.warmUpConcurrency;
+    this.warmUpDeadlineMillis = other.warmUpDeadlineMillis;
+  }
+
+  /**
+   * Creates a copy of this configuration with the pooling settings of the given connection
+   * applied on top of it.
+   * 
+   * @param databaseMeta the connection the pool is created for
+   * @return a new configuration, this instance is left untouched
+   */
+  public DatasourcePoolConfig forDatabaseMeta(DatabaseMeta databaseMeta) {
+    DatasourcePoolConfig config = new DatasourcePoolConfig(this);
+    if (databaseMeta == null || !databaseMeta.isUsingConnectionPool()) {
+      return config;
+    }
+    if (databaseMeta.getMaximumPoolSize() > 0) {
+      config.setMaxActive(databaseMeta.getMaximumPoolSize());
+    }
+    if (databaseMeta.getInitialPoolSize() >= 0) {
+      config.setInitialSize(Math.min(databaseMeta.getInitialPoolSize(), config.getMaxActive()));
+    }
+    Properties props = databaseMeta.getConnectionPoolingProperties();
+    if (props != null) {
+      config.applyProperties(props);
+    }
+    return config;
+  }
+
+  /**
+   * Overrides settings from dbcp style properties, unknown or malformed values are ignored.
+   */
+  public void applyProperties(Properties props) {
+    maxActive = Const.toInt(props.getProperty(MAX_ACTIVE), maxActive);
+    maxIdle = Const.toInt(props.getProperty(MAX_IDLE), maxIdle);
+    minIdle = Const.toInt(props.getProperty(MIN_IDLE), minIdle);
+    initialSize = Const.toInt(props.getProperty(INITIAL_SIZE), initialSize);
+    maxWait = Const.toLong(props.getProperty(MAX_WAIT), maxWait);
+    timeBetweenEvictionRunsMillis = Const.toLong(props.getProperty(TIME_BETWEEN_EVICTION_RUNS_MILLIS),
+        timeBetweenEvictionRunsMillis);
+    minEvictableIdleTimeMillis = Const.toLong(props.getProperty(MIN_EVICTABLE_IDLE_TIME_MILLIS),
+        minEvictableIdleTimeMillis);
+    numTestsPerEvictionRun = Const.toInt(props.getProperty(NUM_TESTS_PER_EVICTION_RUN), numTestsPerEvictionRun);
+    if (!Const.isEmpty(props.getProperty(VALIDATION_QUERY))) {
+      validationQuery = props.getProperty(VALIDATION_QUERY);
+    }
+    testOnBorrow = toBoolean(props.getProperty(TEST_ON_BORROW), testOnBorrow);
+    testWhileIdle = toBoolean(props.getProperty(TEST_WHILE_IDLE), testWhileIdle);
+    poolPreparedStatements = toBoolean(props.getProperty(POOL_PREPARED_STATEMENTS), poolPreparedStatements);
+    maxOpenPreparedStatements = Const.toInt(props.getProperty(MAX_OPEN_PREPARED_STATEMENTS), maxOpenPreparedStatements);
+    warmUpConcurrency = Const.toInt(props.getProperty(WARM_UP_CONCURRENCY), warmUpConcurrency);
+    warmUpDeadlineMillis = Const.toLong(props.getProperty(WARM_UP_DEADLINE_MILLIS), warmUpDeadlineMillis);
+  }
+
+  /**
+   * Applies these settings to a connection pool.
+   */
+  public void configure(GenericObjectPool pool) {
+    pool.setMaxActive(maxActive);
+    pool.setMaxIdle(maxIdle);
+    pool.setMinIdle(minIdle);
+    pool.setMaxWait(maxWait);
+    pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+    pool.setTimeBetweenEvictionRunsMillis(timeBetweenEvictionRunsMillis);
+    pool.setMinEvictableIdleTimeMillis(minEvictableIdleTimeMillis);
+    pool.setNumTestsPerEvictionRun(numTestsPerEvictionRun);
+    pool.setTestOnBorrow(testOnBorrow);
+    pool.setTestWhileIdle(testWhileIdle);
+  }
+
+  private static boolean toBoolean(String value, boolean defaultValue) {
+    if (Const.isEmpty(value)) {
+      return defaultValue;
+    }
+    return "true".equalsIgnoreCase(value) || "Y".equalsIgnoreCase(value); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * The number of connections opened in the background when the pool is created, the
+   * larger of the initial size and the minimum number of idle connections.
+   */
+  public int getWarmUpSize() {
+    int size = Math.max(initialSize, minIdle);
+    return maxActive > 0 ? Math.min(size, maxActive) : size;
+  }
+
+  public int getMaxActive() {
+    return maxActive;
+  }
+
+  public void setMaxActive(int maxActive) {
+    this.maxActive = maxActive;
+  }
+
+  public int getMaxIdle() {
+    return maxIdle;
+  }
+
+  public void setMaxIdle(int maxIdle) {
+    this.maxIdle = maxIdle;
+  }
+
+  public int getMinIdle() {
+    return minIdle;
+  }
+
+  public void setMinIdle(int minIdle) {
+    this.minIdle = minIdle;
+  }
+
+  public int getInitialSize() {
+    return initialSize;
+  }
+
+  public void setInitialSize(int initialSize) {
+    this.initialSize = initialSize;
+  }
+
+  public long getMaxWait() {
+    return maxWait;
+  }
+
+  public void setMaxWait(long maxWait) {
+    this.maxWait = maxWait;
+  }
+
+  public long getTimeBetweenEvictionRunsMillis() {
+    return timeBetweenEvictionRunsMillis;
+  }
+
+  public void setTimeBetweenEvictionRunsMillis(long timeBetweenEvictionRunsMillis) {
+    this.timeBetweenEvictionRunsMillis = timeBetweenEvictionRunsMillis;
+  }
+
+  public long getMinEvictableIdleTimeMillis() {
+    return minEvictableIdleTimeMillis;
+  }
+
+  public void setMinEvictableIdleTimeMillis(long minEvictableIdleTimeMillis) {
+    this.minEvictableIdleTimeMillis = minEvictableIdleTimeMillis;
+  }
+
+  public int getNumTestsPerEvictionRun() {
+    return numTestsPerEvictionRun;
+  }
+
+  public void setNumTestsPerEvictionRun(int numTestsPerEvictionRun) {
+    this.numTestsPerEvictionRun = numTestsPerEvictionRun;
+  }
+
+  public int getWarmUpConcurrency() {
+    return warmUpConcurrency;
+  }
+
+  /**
+   * The number of connections opened in parallel while warming up the pool.
+   */
+  public void setWarmUpConcurrency(int warmUpConcurrency) {
+    this.warmUpConcurrency = warmUpConcurrency;
+  }
+
+  public long getWarmUpDeadlineMillis() {
+    return warmUpDeadlineMillis;
+  }
+
+  /**
+   * No new connections are started by the warm-up once this much time has passed since
+   * the pool was created.
+   */
+  public void setWarmUpDeadlineMillis(long warmUpDeadlineMillis) {
+    this.warmUpDeadlineMillis = warmUpDeadlineMillis;
+  }
+
+  public String getValidationQuery() {
+    return validationQuery;
+  }
+
+  /**
+   * The query used to validate connections, when not set connections are validated with
+   * JDBC 4 isValid() or a query matching the connection's dialect.
+   */
+  public void setValidationQuery(String validationQuery) {
+    this.validationQuery = Const.isEmpty(validationQuery) ? null : validationQuery;
+  }
+
+  public int getValidationTimeoutSeconds() {
+    return validationTimeoutSeconds;
+  }
+
+  public void setValidationTimeoutSeconds(int validationTimeoutSeconds) {
+    this.validationTimeoutSeconds = validationTimeoutSeconds;
+  }
+
+  public boolean isTestOnBorrow() {
+    return testOnBorrow;
+  }
+
+  /**
+   * Validating on borrow costs a round trip for every query, it's off by default and idle
+   * connections are validated by the evictor instead (see {@link #setTestWhileIdle(boolean)}).
+   */
+  public void setTestOnBorrow(boolean testOnBorrow) {
+    this.testOnBorrow = testOnBorrow;
+  }
+
+  public boolean isTestWhileIdle() {
+    return testWhileIdle;
+  }
+
+  public void setTestWhileIdle(boolean testWhileIdle) {
+    this.testWhileIdle = testWhileIdle;
+  }
+
+  public boolean isPoolPreparedStatements() {
+    return poolPreparedStatements;
+  }
+
+  public void setPoolPreparedStatements(boolean poolPreparedStatements) {
+    this.poolPreparedStatements = poolPreparedStatements;
+  }
+
+  public int getMaxOpenPreparedStatements() {
+    return maxOpenPreparedStatements;
+  }
+
+  /**
+   * The number of prepared statements cached per connection, the least recently used
+   * statements are closed when the cache is full.
+   */
+  public void setMaxOpenPreparedStatements(int maxOpenPreparedStatements) {
+    this.maxOpenPreparedStatements = maxOpenPreparedStatements;
+  }
+
+}
@@ -0,0 +1,187 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Borrow and connection creation timings plus size gauges of a {@link DatasourcePool}.
+ * Counters are updated lock free from the borrowing threads.
+ */
+public class DatasourcePoolMetrics implements DatasourcePoolMetricsMBean {
+
+  private static final double NANOS_PER_MILLI = 1000000d;
+
+  private final DatasourcePool pool;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  private final AtomicLong borrowCount = new AtomicLong();
+
+  private final AtomicLong borrowTimeouts = new AtomicLong();
+
+  private final AtomicLong borrowNanos = new AtomicLong();
+
+  private final AtomicLong borrowMaxNanos = new AtomicLong();
+
+  private final AtomicLong created = new AtomicLong();
+
+  private final AtomicLong creationFailures = new AtomicLong();
+
+  private final AtomicLong createNanos = new AtomicLong();
+
+  private final AtomicLong statementRequests = new AtomicLong();
+
+  private final AtomicLong statementsPrepared = new AtomicLong();
+
+  DatasourcePoolMetrics(DatasourcePool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Called before a thread asks the pool for a connection, returns the start time to pass
+   * to {@link #borrowed(long)} or {@link #borrowFailed(boolean)}.
+   */
+  long borrowing() {
+    waiting.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  void borrowed(long start) {
+    long elapsed = System.nanoTime() - start;
+    waiting.decrementAndGet();
+    borrowCount.incrementAndGet();
+    borrowNanos.addAndGet(elapsed);
+    long max = borrowMaxNanos.get();
+    while (elapsed > max && !borrowMaxNanos.compareAndSet(max, elapsed)) {
+      max = borrowMaxNanos.get();
+    }
+  }
+
+  void borrowFailed(boolean timedOut) {
+    waiting.decrementAndGet();
+    if (timedOut) {
+      borrowTimeouts.incrementAndGet();
+    }
+  }
+
+  void connectionCreated(long elapsedNanos) {
+    created.incrementAndGet();
+    createNanos.addAndGet(elapsedNanos);
+  }
+
+  void connectionFailed() {
+    creationFailures.incrementAndGet();
+  }
+
+  void statementRequested() {
+    statementRequests.incrementAndGet();
+  }
+
+  void statementPrepared() {
+    statementsPrepared.incrementAndGet();
+  }
+
+  public String getService() {
+    return pool.getService();
+  }
+
+  public String getName() {
+    return pool.getName();
+  }
+
+  public int getNumActive() {
+    return pool.getNumActive();
+  }
+
+  public int getNumIdle() {
+    return pool.getNumIdle();
+  }
+
+  public int getMaxActive() {
+    return pool.getConfig().getMaxActive();
+  }
+
+  public int getNumWaiting() {
+    // threads that are inside borrowObject but not yet holding a connection
+    return waiting.get();
+  }
+
+  public long getBorrowCount() {
+    return borrowCount.get();
+  }
+
+  public long getBorrowTimeouts() {
+    return borrowTimeouts.get();
+  }
+
+  public double getBorrowTimeAvgMillis() {
+    long count = borrowCount.get();
+    return count == 0 ? 0 : borrowNanos.get() / NANOS_PER_MILLI / count;
+  }
+
+  public double getBorrowTimeMaxMillis() {
+    return borrowMaxNanos.get() / NANOS_PER_MILLI;
+  }
+
+  public long getConnectionsCreated() {
+    return created.get();
+  }
+
+  public long getConnectionCreationFailures() {
+    return creationFailures.get();
+  }
+
+  public double getCreateTimeAvgMillis() {
+    long count = created.get();
+    return count == 0 ? 0 : createNanos.get() / NANOS_PER_MILLI / count;
+  }
+
+  public long getStatementCacheHits() {
+    return Math.max(0, statementRequests.get() - statementsPrepared.get());
+  }
+
+  public long getStatementCacheMisses() {
+    return statementsPrepared.get();
+  }
+
+  public JSONObject toJSON() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("service", getService()); //$NON-NLS-1$
+    json.put("name", getName()); //$NON-NLS-1$
+    json.put("numActive", getNumActive()); //$NON-NLS-1$
+    json.put("numIdle", getNumIdle()); //$NON-NLS-1$
+    json.put("maxActive", getMaxActive()); //$NON-NLS-1$
+    json.put("numWaiting", getNumWaiting()); //$NON-NLS-1$
+    json.put("borrowCount", getBorrowCount()); //$NON-NLS-1$
+    json.put("borrowTimeouts", getBorrowTimeouts()); //$NON-NLS-1$
+    json.put("borrowTimeAvgMillis", getBorrowTimeAvgMillis()); //$NON-NLS-1$
+    json.put("borrowTimeMaxMillis", getBorrowTimeMaxMillis()); //$NON-NLS-1$
+    json.put("connectionsCreated", getConnectionsCreated()); //$NON-NLS-1$
+    json.put("connectionCreationFailures", getConnectionCreationFailures()); //$NON-NLS-1$
+    json.put("createTimeAvgMillis", getCreateTimeAvgMillis()); //$NON-NLS-1$
+    json.put("statementCacheHits", getStatementCacheHits()); //$NON-NLS-1$
+    json.put("statementCacheMisses", getStatementCacheMisses()); //$NON-NLS-1$
+    return json;
+  }
+
+}
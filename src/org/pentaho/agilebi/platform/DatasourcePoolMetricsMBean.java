@@ -0,0 +1,55 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+/**
+ * JMX view of a datasource connection pool, see {@link DatasourcePoolMetrics}.
+ */
+public interface DatasourcePoolMetricsMBean {
+
+  public String getService();
+
+  public String getName();
+
+  public int getNumActive();
+
+  public int getNumIdle();
+
+  public int getMaxActive();
+
+  public int getNumWaiting();
+
+  public long getBorrowCount();
+
+  public long getBorrowTimeouts();
+
+  public double getBorrowTimeAvgMillis();
+
+  public double getBorrowTimeMaxMillis();
+
+  public long getConnectionsCreated();
+
+  public long getConnectionCreationFailures();
+
+  public double getCreateTimeAvgMillis();
+
+  public long getStatementCacheHits();
+
+  public long getStatementCacheMisses();
+
+}
@@ -0,0 +1,97 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Keeps track of the metrics of every open datasource pool and publishes them as MBeans
+ * under {@value #JMX_DOMAIN}.
+ */
+public class DatasourcePoolRegistry {
+
+  public static final String JMX_DOMAIN = "org.pentaho.agilebi"; //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(DatasourcePoolRegistry.class.toString());
+
+  private static final ConcurrentMap<String, DatasourcePoolMetrics> metrics = new ConcurrentHashMap<String, DatasourcePoolMetrics>();
+
+  private DatasourcePoolRegistry() {
+  }
+
+  static void register(DatasourcePoolMetrics poolMetrics) {
+    DatasourcePoolMetrics previous = metrics.put(getKey(poolMetrics.getService(), poolMetrics.getName()), poolMetrics);
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = getObjectName(poolMetrics);
+      if (previous != null && server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(poolMetrics, objectName);
+    } catch (Exception e) {
+      log.logError("Could not register pool metrics for " + poolMetrics.getName(), e); //$NON-NLS-1$
+    }
+  }
+
+  static void unregister(DatasourcePoolMetrics poolMetrics) {
+    // a newer pool for the same datasource may have replaced this one already
+    if (!metrics.remove(getKey(poolMetrics.getService(), poolMetrics.getName()), poolMetrics)) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = getObjectName(poolMetrics);
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (Exception e) {
+      log.logError("Could not unregister pool metrics for " + poolMetrics.getName(), e); //$NON-NLS-1$
+    }
+  }
+
+  public static List<DatasourcePoolMetrics> getMetrics() {
+    return new ArrayList<DatasourcePoolMetrics>(metrics.values());
+  }
+
+  public static DatasourcePoolMetrics getMetrics(String service, String dsName) {
+    return metrics.get(getKey(service, dsName));
+  }
+
+  /**
+   * the services use the same datasource names, so their pools are kept apart
+   */
+  private static String getKey(String service, String dsName) {
+    return service + ':' + dsName;
+  }
+
+  private static ObjectName getObjectName(DatasourcePoolMetrics poolMetrics) throws Exception {
+    return new ObjectName(JMX_DOMAIN + ":type=DatasourcePool,service=" + ObjectName.quote(poolMetrics.getService()) //$NON-NLS-1$
+        + ",name=" + ObjectName.quote(poolMetrics.getName())); //$NON-NLS-1$
+  }
+
+}
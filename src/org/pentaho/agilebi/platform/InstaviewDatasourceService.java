@@ -17,57 +17,61 @@
 
 package org.pentaho.agilebi.platform;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.logging.Logger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.sql.DataSource;
 
-import org.apache.commons.dbcp.ConnectionFactory;
-import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDriver;
-import org.apache.commons.pool.KeyedObjectPoolFactory;
-import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
-import org.apache.commons.pool.impl.GenericObjectPool;
-import org.pentaho.di.core.database.Database;
 import org.pentaho.di.core.database.DatabaseMeta;
-import org.pentaho.di.core.exception.KettleException;
-import org.pentaho.metadata.model.Domain;
-import org.pentaho.metadata.model.SqlPhysicalModel;
-import org.pentaho.metadata.util.ThinModelConverter;
-import org.pentaho.metadata.util.XmiParser;
 import org.pentaho.platform.api.data.DBDatasourceServiceException;
 import org.pentaho.platform.api.data.IDBDatasourceService;
 
 public class InstaviewDatasourceService implements IDBDatasourceService {
 
-	private GenericObjectPool gPool = new GenericObjectPool();
+  public static final String SERVICE_NAME = "instaview"; //$NON-NLS-1$
 
-	private KeyedObjectPoolFactory kopf =new GenericKeyedObjectPoolFactory(null, 8);
+  private DatasourcePoolConfig poolConfig = new DatasourcePoolConfig();
+
+  /**
+   * pools by datasource name. the future is registered before the pool is built so that
+   * concurrent requests for a new datasource wait for the first one instead of each
+   * parsing the XMI and opening connections of their own.
+   */
+  private final ConcurrentMap<String, Future<DatasourcePool>> pools = new ConcurrentHashMap<String, Future<DatasourcePool>>();
+
+  public InstaviewDatasourceService() {
+
+  }
+
+  public DatasourcePoolConfig getPoolConfig() {
+    return poolConfig;
+  }
+
+  /**
+   * Sets the default pool settings used for every datasource, the pooling settings of the
+   * datasource's own connection take precedence.
+   */
+  public void setPoolConfig(DatasourcePoolConfig poolConfig) {
+    this.poolConfig = poolConfig;
+  }
 
-	private Set<String> knownPools = new HashSet<String>();
-	
-	private int connectionCount = 0;
-	
-	private Map<String,DatabaseMeta> databaseMetaMap = new HashMap<String,DatabaseMeta>();
-	
-	public InstaviewDatasourceService() {
-		
-	}
-	
   public void clearCache() {
-    // TODO impl cache
+    for (String dsName : pools.keySet()) {
+      clearDataSource(dsName);
+    }
   }
 
   public void clearDataSource(String dsName) {
-    // TODO impl cache
+    Future<DatasourcePool> pool = pools.remove(dsName);
+    if (pool != null) {
+      closePool(pool);
+    }
   }
 
   public String getDSBoundName(String dsName) throws DBDatasourceServiceException {
@@ -79,181 +83,76 @@ public class InstaviewDatasourceService implements IDBDatasourceService {
   }
 
   public DataSource getDataSource(String dsName) throws DBDatasourceServiceException {
+    return getPool(dsName).getDataSource();
+  }
 
-	  DatabaseMeta databaseMeta = databaseMetaMap.get(dsName);
-	  
-	  if( knownPools.contains(dsName)) {
-		  try {
-				DatabaseMetaDataSource dataSource = new DatabaseMetaDataSource(dsName);
-				return dataSource;
-		} catch (Exception e) {
-			throw new DBDatasourceServiceException(e);
-		}
-	  }
+  private DatasourcePool getPool(final String dsName) throws DBDatasourceServiceException {
+    Future<DatasourcePool> pool = pools.get(dsName);
+    if (pool == null) {
+      FutureTask<DatasourcePool> task = new FutureTask<DatasourcePool>(new Callable<DatasourcePool>() {
+        public DatasourcePool call() throws Exception {
+          return createPool(dsName);
+        }
+      });
+      pool = pools.putIfAbsent(dsName, task);
+      if (pool == null) {
+        // we won the race, build the pool on this thread
+        pool = task;
+        task.run();
+      }
+    }
 
-    // nothing in the pool so create a new pool
-    Domain domain = null;
     try {
-      XmiParser parser = new XmiParser();
-      FileInputStream fis = new FileInputStream(new File(dsName));
-      domain = parser.parseXmi(fis);
-    } catch (Exception e) {
+      return pool.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       throw new DBDatasourceServiceException(e);
+    } catch (ExecutionException e) {
+      // forget the failure so that the next request tries again
+      pools.remove(dsName, pool);
+      if (e.getCause() instanceof DBDatasourceServiceException) {
+        throw (DBDatasourceServiceException) e.getCause();
+      }
+      throw new DBDatasourceServiceException(e.getCause());
     }
+  }
 
-    if (domain.getPhysicalModels().size() == 0 || 
-        !(domain.getPhysicalModels().get(0) instanceof SqlPhysicalModel)) {
-      throw new DBDatasourceServiceException("No SQL Physical Model Available");
-      
-    }
-    
-    SqlPhysicalModel model = (SqlPhysicalModel)domain.getPhysicalModels().get(0);
-    
-    databaseMeta = ThinModelConverter.convertToLegacy(model.getId(), model.getDatasource());
-	
-    ConnectionFactory cf = new DatabaseMetaConnectionFactory(databaseMeta);
-
-    GenericObjectPool.Config config = new GenericObjectPool.Config();
-    config.testOnBorrow = true;
-    gPool.setConfig(config);
-
-	  PoolableConnectionFactory pcf =  new PoolableConnectionFactory(cf,
-            gPool,
-            kopf,
-            "select 1",
-            false,
-            true);
-	
-	try {
-//		for(int i = 0; i < 5; i++) {
-//		      gPool.addObject();
-//		    }
+  private DatasourcePool createPool(String dsName) throws DBDatasourceServiceException {
+    DatabaseMeta databaseMeta = XmiDatabaseMetaLoader.load(dsName);
 
-		    // PoolingDataSource pds = new PoolingDataSource(gPool);
-		    PoolingDriver pd = new PoolingDriver();
-		    pd.registerPool(dsName, gPool);
+    DatasourcePool pool = new DatasourcePool(SERVICE_NAME, dsName, databaseMeta, new InstaviewConnectionFactory(
+        databaseMeta), poolConfig.forDatabaseMeta(databaseMeta));
+    pool.register();
+    pool.warmUp();
+    return pool;
+  }
 
-		    for(int i = 0; i < 5; i++) {
-		      gPool.addObject();
-		    }
-		
-	} catch (Exception e) {
-		throw new DBDatasourceServiceException(e);
-	}
-    
-    Database database = new Database(databaseMeta);
+  private void closePool(Future<DatasourcePool> pool) {
     try {
-      database.connect();
-    } catch (Exception e) {
-      throw new DBDatasourceServiceException(e);
+      pool.get().close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // the pool was never created, nothing to close
     }
-    Connection connection = database.getConnection();
-	
-	knownPools.add(dsName);
-	databaseMetaMap.put(dsName, databaseMeta);
-	
-    return new DatabaseMetaDataSource(dsName);
   }
 
-  class DatabaseMetaConnectionFactory implements ConnectionFactory {
-
-	    DatabaseMeta databaseMeta;
-
-		public DatabaseMetaConnectionFactory(DatabaseMeta databaseMeta) {
-			this.databaseMeta = databaseMeta;
-		}
-		    
-
-		@Override
-		public Connection createConnection() throws SQLException {
-		      Database database = new Database(databaseMeta);
-		      try {
-		        database.connect();
-		        connectionCount++;
-    			IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
-    			if( instaviewHelper != null ) {
-    				instaviewHelper.connectionMade();
-    			}
-  		      Connection connection = database.getConnection();
+  class InstaviewConnectionFactory extends DatabaseMetaConnectionFactory {
 
-		      return connection;
-		        
-		      } catch (KettleException e) {
-		        e.printStackTrace();
-		        throw new SQLException(e.getMessage());
-		      }
-//		      WrappedConnection wrapper = new WrappedConnection(connection);
-		}
-	  
-  }  
-  
-  class DatabaseMetaDataSource implements DataSource {
-
-	    DatabaseMeta databaseMeta;
-	    
-	    Connection connection;
-	    
-	    String dsName;
-	    
-	    public DatabaseMetaDataSource(String dsName) {
-	      this.dsName = dsName;
-	    }
-	    
-	    public Connection getConnection() throws SQLException {
-			Connection connection = java.sql.DriverManager.getConnection("jdbc:apache:commons:dbcp:"+dsName); //$NON-NLS-1$
-/*
-			try {
-	        connectionCount++;
-	        if( connectionCount == BOUNCE_THREASHOLD ) {
-	    		try {
-	    			IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
-	    			if( instaviewHelper != null ) {
-	    				instaviewHelper.restartDatastore();
-			        	connectionCount = 0;
-	    			}
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-	        }
-	      } catch (Exception e) {
-	        e.printStackTrace();
-	        throw new SQLException(e.getMessage());
-	      }
-	      */
-	      return connection;
-	    }
-
-	    public Connection getConnection(String username, String password) throws SQLException {
-	      return null;
-	    }
-
-	    public PrintWriter getLogWriter() throws SQLException {
-	      return null;
-	    }
+    public InstaviewConnectionFactory(DatabaseMeta databaseMeta) {
+      super(databaseMeta);
+    }
 
-	    public int getLoginTimeout() throws SQLException {
-	      return 0;
-	    }
+    @Override
+    public Connection createConnection() throws SQLException {
+      Connection connection = super.createConnection();
+      IInstaviewHelper instaviewHelper = InstaviewHelper.getInstaviewHelper();
+      if (instaviewHelper != null) {
+        instaviewHelper.connectionMade();
+      }
+      return connection;
+    }
 
-	    public void setLogWriter(PrintWriter out) throws SQLException {
-	    }
+  }
 
-	    public void setLoginTimeout(int seconds) throws SQLException {
-	    }
-	   
-	    public boolean  isWrapperFor(Class<?> iface) {
-	      return false;
-	    }
-	    
-	    public <T> T unwrap(Class<T> iface) {
-	      return null;
-	    } 
-       
-            public Logger getParentLogger() {
-              return null;
-            }
-	    
-	  }
-  
 }
@@ -17,13 +17,17 @@
 
 package org.pentaho.agilebi.platform;
 
+import java.io.IOException;
+
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Handler;
 import org.mortbay.jetty.Server;
-import org.mortbay.jetty.bio.SocketConnector;
 import org.mortbay.jetty.handler.DefaultHandler;
 import org.mortbay.jetty.handler.HandlerCollection;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.FilterHolder;
 import org.mortbay.jetty.webapp.WebAppContext;
+import org.mortbay.servlet.GzipFilter;
 import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.core.logging.LogChannelInterface;
 
@@ -35,11 +39,18 @@ public class JettyServer {
 
   public static final int PORT = 80;
 
+  private static final String GZIP_MIME_TYPES = "text/html,text/plain,text/xml,text/css,text/javascript," //$NON-NLS-1$
+      + "application/javascript,application/x-javascript,application/json,application/xml,image/svg+xml"; //$NON-NLS-1$
+
   private Server server;
 
   private String hostname;
 
   private int port;
+
+  private JettyServerConfig config = JettyServerConfig.load();
+
+  private SelectChannelConnector connector;
   
   private String webappsFolder = "plugins/spoon/agile-bi/platform/webapps"; //$NON-NLS-1$
 
@@ -48,6 +59,60 @@ public class JettyServer {
     this.port = port;
   }
 
+  /**
+   * Binds the connector so the port is known and taken before the webapp starts. If the port
+   * is 0 or in use an ephemeral port is bound.
+   * 
+   * @return the bound port
+   */
+  public int open() throws IOException {
+    if (connector == null) {
+      if (port > 0) {
+        try {
+          connector = createConnector(port);
+        } catch (IOException e) {
+          log.logBasic("Port " + port + " is in use, binding an ephemeral port"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+      }
+      if (connector == null) {
+        connector = createConnector(0);
+      }
+      port = connector.getLocalPort();
+    }
+    return port;
+  }
+
+  private SelectChannelConnector createConnector(int port) throws IOException {
+    SelectChannelConnector connector = new SelectChannelConnector();
+    config.configure(connector);
+    connector.setPort(port);
+    connector.setHost(hostname);
+    connector.setName(hostname);
+    try {
+      connector.open();
+    } catch (IOException e) {
+      try {
+        connector.close();
+      } catch (IOException ignored) {
+        // the bind failure is reported
+      }
+      throw e;
+    }
+    return connector;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public void setConfig(JettyServerConfig config) {
+    this.config = config;
+  }
+
+  public JettyServerConfig getConfig() {
+    return config;
+  }
+
   public void setWebappsFolder(String webappsFolder) {
     this.webappsFolder = webappsFolder;
   }
@@ -58,6 +123,7 @@ public class JettyServer {
 
   public void startServer() throws Exception {
     server = new Server();
+    server.setThreadPool(config.createThreadPool());
 
     WebAppContext pentahoContext = new WebAppContext();
     pentahoContext.setClassLoader(getClass().getClassLoader());
@@ -65,9 +131,19 @@ public class JettyServer {
     pentahoContext.setWar(webappsFolder + "/pentaho"); //$NON-NLS-1$
     
     pentahoContext.setParentLoaderPriority(true);
+
+    // compress, then let the browser cache the static resources
+    if (config.isGzip()) {
+      FilterHolder gzip = new FilterHolder(GzipFilter.class);
+      gzip.setInitParameter("mimeTypes", GZIP_MIME_TYPES); //$NON-NLS-1$
+      gzip.setInitParameter("minGzipSize", Integer.toString(config.getGzipMinSize())); //$NON-NLS-1$
+      pentahoContext.addFilter(gzip, "/*", Handler.REQUEST); //$NON-NLS-1$
+    }
+    pentahoContext.addFilter(new FilterHolder(new StaticResourceCacheFilter(config.getStaticMaxAgeSeconds())),
+        "/*", Handler.REQUEST); //$NON-NLS-1$
     
     HandlerCollection handlers= new HandlerCollection();
-    handlers.setHandlers(new Handler[]{pentahoContext, new DefaultHandler()});
+    handlers.setHandlers(new Handler[]{new PoolMetricsHandler(), pentahoContext, new DefaultHandler()});
 
     server.setHandler(handlers);
 
@@ -91,11 +167,8 @@ public class JettyServer {
     }
   }
 
-  private void createListeners() {
-    SocketConnector connector = new SocketConnector();
-    connector.setPort(port);
-    connector.setHost(hostname);
-    connector.setName(hostname);
+  private void createListeners() throws IOException {
+    open();
     log.logBasic("WebServer.Log.CreateListener " + hostname + ":" + port);
 
     server.setConnectors(new Connector[] { connector });
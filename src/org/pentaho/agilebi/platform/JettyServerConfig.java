@@ -0,0 +1,274 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.thread.QueuedThreadPool;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Connector and threading settings of the embedded server, read from
+ * plugins/spoon/agile-bi/server.properties. Missing settings keep their defaults.
+ * 
+ * Jetty keeps a connection alive until it was idle for maxIdleTimeMillis, when more than
+ * lowResourcesConnections are open idle connections are closed after
+ * lowResourcesMaxIdleTimeMillis instead.
+ */
+public class JettyServerConfig {
+
+  private static LogChannelInterface log = new LogChannel(JettyServerConfig.class.toString());
+
+  public static final String CONFIG_FILE_LOCATION = "plugins/spoon/agile-bi/server.properties"; //$NON-NLS-1$
+
+  public static final String MIN_THREADS = "minThreads"; //$NON-NLS-1$
+
+  public static final String MAX_THREADS = "maxThreads"; //$NON-NLS-1$
+
+  public static final String THREAD_MAX_IDLE_MILLIS = "threadMaxIdleMillis"; //$NON-NLS-1$
+
+  public static final String ACCEPTORS = "acceptors"; //$NON-NLS-1$
+
+  public static final String ACCEPT_QUEUE_SIZE = "acceptQueueSize"; //$NON-NLS-1$
+
+  public static final String MAX_IDLE_TIME_MILLIS = "maxIdleTimeMillis"; //$NON-NLS-1$
+
+  public static final String LOW_RESOURCES_CONNECTIONS = "lowResourcesConnections"; //$NON-NLS-1$
+
+  public static final String LOW_RESOURCES_MAX_IDLE_TIME_MILLIS = "lowResourcesMaxIdleTimeMillis"; //$NON-NLS-1$
+
+  public static final String STATIC_MAX_AGE_SECONDS = "staticMaxAgeSeconds"; //$NON-NLS-1$
+
+  public static final String GZIP = "gzip"; //$NON-NLS-1$
+
+  public static final String GZIP_MIN_SIZE = "gzipMinSize"; //$NON-NLS-1$
+
+  public static final String WARM_UP = "warmUp"; //$NON-NLS-1$
+
+  public static final String WARM_UP_CONNECTIONS = "warmUpConnections"; //$NON-NLS-1$
+
+  private int minThreads = 4;
+
+  private int maxThreads = 50;
+
+  private int threadMaxIdleMillis = 60000;
+
+  private int acceptors = 1;
+
+  private int acceptQueueSize = 128;
+
+  private int maxIdleTimeMillis = 30000;
+
+  private int lowResourcesConnections = 200;
+
+  private int lowResourcesMaxIdleTimeMillis = 5000;
+
+  private int staticMaxAgeSeconds = StaticResourceCacheFilter.DEFAULT_MAX_AGE_SECONDS;
+
+  private boolean gzip = true;
+
+  private int gzipMinSize = 1024;
+
+  private boolean warmUp = true;
+
+  private boolean warmUpConnections = false;
+
+  /**
+   * @return the settings of the plugin's server.properties, the defaults if there is none
+   */
+  public static JettyServerConfig load() {
+    JettyServerConfig config = new JettyServerConfig();
+    File file = new File(CONFIG_FILE_LOCATION);
+    if (file.exists()) {
+      Properties props = new Properties();
+      InputStream in = null;
+      try {
+        in = new FileInputStream(file);
+        props.load(in);
+        config.applyProperties(props);
+      } catch (IOException e) {
+        log.logError("Could not read " + file.getAbsolutePath() + ", using the default server settings", e); //$NON-NLS-1$ //$NON-NLS-2$
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException ignored) {
+            // nothing to do
+          }
+        }
+      }
+    }
+    return config;
+  }
+
+  public void applyProperties(Properties props) {
+    minThreads = Const.toInt(props.getProperty(MIN_THREADS), minThreads);
+    maxThreads = Const.toInt(props.getProperty(MAX_THREADS), maxThreads);
+    threadMaxIdleMillis = Const.toInt(props.getProperty(THREAD_MAX_IDLE_MILLIS), threadMaxIdleMillis);
+    acceptors = Const.toInt(props.getProperty(ACCEPTORS), acceptors);
+    acceptQueueSize = Const.toInt(props.getProperty(ACCEPT_QUEUE_SIZE), acceptQueueSize);
+    maxIdleTimeMillis = Const.toInt(props.getProperty(MAX_IDLE_TIME_MILLIS), maxIdleTimeMillis);
+    lowResourcesConnections = Const.toInt(props.getProperty(LOW_RESOURCES_CONNECTIONS), lowResourcesConnections);
+    lowResourcesMaxIdleTimeMillis = Const.toInt(props.getProperty(LOW_RESOURCES_MAX_IDLE_TIME_MILLIS),
+        lowResourcesMaxIdleTimeMillis);
+    staticMaxAgeSeconds = Const.toInt(props.getProperty(STATIC_MAX_AGE_SECONDS), staticMaxAgeSeconds);
+    if (!Const.isEmpty(props.getProperty(GZIP))) {
+      gzip = "true".equalsIgnoreCase(props.getProperty(GZIP).trim()); //$NON-NLS-1$
+    }
+    gzipMinSize = Const.toInt(props.getProperty(GZIP_MIN_SIZE), gzipMinSize);
+    if (!Const.isEmpty(props.getProperty(WARM_UP))) {
+      warmUp = "true".equalsIgnoreCase(props.getProperty(WARM_UP).trim()); //$NON-NLS-1$
+    }
+    if (!Const.isEmpty(props.getProperty(WARM_UP_CONNECTIONS))) {
+      warmUpConnections = "true".equalsIgnoreCase(props.getProperty(WARM_UP_CONNECTIONS).trim()); //$NON-NLS-1$
+    }
+  }
+
+  public QueuedThreadPool createThreadPool() {
+    QueuedThreadPool pool = new QueuedThreadPool();
+    pool.setName("agilebi-http"); //$NON-NLS-1$
+    pool.setDaemon(true);
+    pool.setMinThreads(Math.min(minThreads, maxThreads));
+    pool.setMaxThreads(maxThreads);
+    pool.setMaxIdleTimeMs(threadMaxIdleMillis);
+    return pool;
+  }
+
+  public void configure(SelectChannelConnector connector) {
+    connector.setAcceptors(acceptors);
+    connector.setAcceptQueueSize(acceptQueueSize);
+    connector.setMaxIdleTime(maxIdleTimeMillis);
+    connector.setLowResourcesConnections(lowResourcesConnections);
+    connector.setLowResourcesMaxIdleTime(lowResourcesMaxIdleTimeMillis);
+  }
+
+  public int getMinThreads() {
+    return minThreads;
+  }
+
+  public void setMinThreads(int minThreads) {
+    this.minThreads = minThreads;
+  }
+
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  public void setMaxThreads(int maxThreads) {
+    this.maxThreads = maxThreads;
+  }
+
+  public int getThreadMaxIdleMillis() {
+    return threadMaxIdleMillis;
+  }
+
+  public void setThreadMaxIdleMillis(int threadMaxIdleMillis) {
+    this.threadMaxIdleMillis = threadMaxIdleMillis;
+  }
+
+  public int getAcceptors() {
+    return acceptors;
+  }
+
+  public void setAcceptors(int acceptors) {
+    this.acceptors = acceptors;
+  }
+
+  public int getAcceptQueueSize() {
+    return acceptQueueSize;
+  }
+
+  public void setAcceptQueueSize(int acceptQueueSize) {
+    this.acceptQueueSize = acceptQueueSize;
+  }
+
+  public int getMaxIdleTimeMillis() {
+    return maxIdleTimeMillis;
+  }
+
+  public void setMaxIdleTimeMillis(int maxIdleTimeMillis) {
+    this.maxIdleTimeMillis = maxIdleTimeMillis;
+  }
+
+  public int getLowResourcesConnections() {
+    return lowResourcesConnections;
+  }
+
+  public void setLowResourcesConnections(int lowResourcesConnections) {
+    this.lowResourcesConnections = lowResourcesConnections;
+  }
+
+  public int getLowResourcesMaxIdleTimeMillis() {
+    return lowResourcesMaxIdleTimeMillis;
+  }
+
+  public void setLowResourcesMaxIdleTimeMillis(int lowResourcesMaxIdleTimeMillis) {
+    this.lowResourcesMaxIdleTimeMillis = lowResourcesMaxIdleTimeMillis;
+  }
+
+  public int getStaticMaxAgeSeconds() {
+    return staticMaxAgeSeconds;
+  }
+
+  public void setStaticMaxAgeSeconds(int staticMaxAgeSeconds) {
+    this.staticMaxAgeSeconds = staticMaxAgeSeconds;
+  }
+
+  public boolean isGzip() {
+    return gzip;
+  }
+
+  public void setGzip(boolean gzip) {
+    this.gzip = gzip;
+  }
+
+  public int getGzipMinSize() {
+    return gzipMinSize;
+  }
+
+  public void setGzipMinSize(int gzipMinSize) {
+    this.gzipMinSize = gzipMinSize;
+  }
+
+  public boolean isWarmUp() {
+    return warmUp;
+  }
+
+  public void setWarmUp(boolean warmUp) {
+    this.warmUp = warmUp;
+  }
+
+  /**
+   * @return true if the warm-up may open the connection pools of the models it loads
+   */
+  public boolean isWarmUpConnections() {
+    return warmUpConnections;
+  }
+
+  public void setWarmUpConnections(boolean warmUpConnections) {
+    this.warmUpConnections = warmUpConnections;
+  }
+
+}
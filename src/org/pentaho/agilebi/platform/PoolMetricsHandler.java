@@ -0,0 +1,67 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mortbay.jetty.HttpConnection;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+/**
+ * Serves the metrics of the open datasource pools as JSON on {@value #PATH}, e.g.
+ * http://localhost:10000/agilebi/pools
+ */
+public class PoolMetricsHandler extends AbstractHandler {
+
+  public static final String PATH = "/agilebi/pools"; //$NON-NLS-1$
+
+  public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch)
+    throws IOException, ServletException {
+    if (!PATH.equals(target)) {
+      return;
+    }
+
+    JSONObject json = new JSONObject();
+    try {
+      JSONArray pools = new JSONArray();
+      for (DatasourcePoolMetrics metrics : DatasourcePoolRegistry.getMetrics()) {
+        pools.put(metrics.toJSON());
+      }
+      json.put("pools", pools); //$NON-NLS-1$
+    } catch (JSONException e) {
+      throw new ServletException(e);
+    }
+
+    response.setContentType("application/json"); //$NON-NLS-1$
+    response.setCharacterEncoding("UTF-8"); //$NON-NLS-1$
+    response.setHeader("Cache-Control", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+    response.getWriter().write(json.toString());
+
+    Request baseRequest = (request instanceof Request) ? (Request) request : HttpConnection.getCurrentConnection().getRequest();
+    baseRequest.setHandled(true);
+  }
+
+}
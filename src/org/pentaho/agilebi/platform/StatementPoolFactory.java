@@ -0,0 +1,135 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import org.apache.commons.pool.KeyedObjectPool;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.KeyedPoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+
+/**
+ * Creates the per connection prepared statement caches of a datasource pool. A cache holds
+ * at most maxOpenPreparedStatements statements; when it is full the statements that have
+ * been idle the longest are closed first. Lookups are counted as hits and misses in the
+ * pool's {@link DatasourcePoolMetrics}.
+ */
+class StatementPoolFactory implements KeyedObjectPoolFactory {
+
+  private final int maxOpenPreparedStatements;
+
+  private final DatasourcePoolMetrics metrics;
+
+  StatementPoolFactory(int maxOpenPreparedStatements, DatasourcePoolMetrics metrics) {
+    this.maxOpenPreparedStatements = maxOpenPreparedStatements;
+    this.metrics = metrics;
+  }
+
+  public KeyedObjectPool createPool() {
+    // same settings commons-dbcp's BasicDataSource uses for statement pooling, an idle
+    // statement per SQL string and maxTotal across all of them
+    GenericKeyedObjectPool pool = new GenericKeyedObjectPool(null);
+    pool.setMaxActive(-1);
+    pool.setMaxIdle(1);
+    pool.setMaxTotal(maxOpenPreparedStatements);
+    pool.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL);
+    pool.setMaxWait(0);
+    return new CountingKeyedObjectPool(pool);
+  }
+
+  private class CountingKeyedObjectPool implements KeyedObjectPool {
+
+    private final KeyedObjectPool delegate;
+
+    CountingKeyedObjectPool(KeyedObjectPool delegate) {
+      this.delegate = delegate;
+    }
+
+    public Object borrowObject(Object key) throws Exception {
+      metrics.statementRequested();
+      return delegate.borrowObject(key);
+    }
+
+    public void returnObject(Object key, Object obj) throws Exception {
+      delegate.returnObject(key, obj);
+    }
+
+    public void invalidateObject(Object key, Object obj) throws Exception {
+      delegate.invalidateObject(key, obj);
+    }
+
+    public void addObject(Object key) throws Exception {
+      delegate.addObject(key);
+    }
+
+    public int getNumIdle(Object key) {
+      return delegate.getNumIdle(key);
+    }
+
+    public int getNumActive(Object key) {
+      return delegate.getNumActive(key);
+    }
+
+    public int getNumIdle() {
+      return delegate.getNumIdle();
+    }
+
+    public int getNumActive() {
+      return delegate.getNumActive();
+    }
+
+    public void clear() throws Exception {
+      delegate.clear();
+    }
+
+    public void clear(Object key) throws Exception {
+      delegate.clear(key);
+    }
+
+    public void close() throws Exception {
+      delegate.close();
+    }
+
+    public void setFactory(final KeyedPoolableObjectFactory factory) {
+      // the factory is the pooling connection, every statement it makes is a cache miss
+      delegate.setFactory(new KeyedPoolableObjectFactory() {
+        public Object makeObject(Object key) throws Exception {
+          metrics.statementPrepared();
+          return factory.makeObject(key);
+        }
+
+        public void destroyObject(Object key, Object obj) throws Exception {
+          factory.destroyObject(key, obj);
+        }
+
+        public boolean validateObject(Object key, Object obj) {
+          return factory.validateObject(key, obj);
+        }
+
+        public void activateObject(Object key, Object obj) throws Exception {
+          factory.activateObject(key, obj);
+        }
+
+        public void passivateObject(Object key, Object obj) throws Exception {
+          factory.passivateObject(key, obj);
+        }
+      });
+    }
+
+  }
+
+}
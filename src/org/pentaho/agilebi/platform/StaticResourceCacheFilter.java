@@ -0,0 +1,335 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.pentaho.di.core.Const;
+
+/**
+ * Lets the browser cache the static resources of the webapp (scripts, style sheets, images
+ * and fonts). They are served with an ETag, a request with a matching If-None-Match gets a 304
+ * without a body. Their paths aren't versioned, so they are marked no-cache and revalidated on
+ * every use, which picks up an upgraded webapp right away. Only requests that carry a version
+ * parameter (see {@link #VERSION_PARAMETERS}) get a long max-age. Everything else, the report
+ * and editor endpoints in particular, is marked no-cache without an ETag.
+ * 
+ * The ETag of a file of the webapp is made of its modification time and size, a matching
+ * request is answered without reading the file. Other resources, scripts generated by a
+ * servlet for example, are always rendered and their ETag is a hash of the body. ETags are
+ * weak because the same ETag is sent for the compressed and the identity response.
+ */
+public class StaticResourceCacheFilter implements Filter {
+
+  public static final String MAX_AGE_SECONDS = "maxAgeSeconds"; //$NON-NLS-1$
+
+  public static final int DEFAULT_MAX_AGE_SECONDS = 7 * 24 * 60 * 60;
+
+  private static final String[] STATIC_EXTENSIONS = { ".js", ".css", ".png", ".gif", ".jpg", ".jpeg", ".ico", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+      ".svg", ".woff", ".ttf", ".eot", ".swf" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+
+  /**
+   * query parameters that mark a request for a specific version of a resource
+   */
+  public static final String[] VERSION_PARAMETERS = { "v", "ver", "version", "build" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+  private int maxAgeSeconds;
+
+  private ServletContext servletContext;
+
+  public StaticResourceCacheFilter() {
+    this(DEFAULT_MAX_AGE_SECONDS);
+  }
+
+  public StaticResourceCacheFilter(int maxAgeSeconds) {
+    this.maxAgeSeconds = maxAgeSeconds;
+  }
+
+  public void init(FilterConfig filterConfig) throws ServletException {
+    maxAgeSeconds = Const.toInt(filterConfig.getInitParameter(MAX_AGE_SECONDS), maxAgeSeconds);
+    servletContext = filterConfig.getServletContext();
+  }
+
+  public void destroy() {
+  }
+
+  public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException,
+    ServletException {
+    HttpServletRequest request = (HttpServletRequest) req;
+    HttpServletResponse response = (HttpServletResponse) res;
+
+    if (!isStaticResource(request)) {
+      response.setHeader("Cache-Control", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+      chain.doFilter(request, response);
+      return;
+    }
+
+    if (isVersioned(request)) {
+      response.setHeader("Cache-Control", "public, max-age=" + maxAgeSeconds); //$NON-NLS-1$ //$NON-NLS-2$
+      response.setDateHeader("Expires", System.currentTimeMillis() + maxAgeSeconds * 1000L); //$NON-NLS-1$
+    } else {
+      response.setHeader("Cache-Control", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    // the gzip filter may compress the body depending on the request
+    response.setHeader("Vary", "Accept-Encoding"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    File file = getFile(request);
+    if (file != null) {
+      String etag = "W/\"" + Long.toHexString(file.lastModified()) + '-' + Long.toHexString(file.length()) + "\""; //$NON-NLS-1$ //$NON-NLS-2$
+      response.setHeader("ETag", etag); //$NON-NLS-1$
+      if (matches(request.getHeader("If-None-Match"), etag)) { //$NON-NLS-1$
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      chain.doFilter(request, response);
+      return;
+    }
+
+    // not a file, its ETag is computed from the body rendered for this request
+    BufferedResponse buffered = new BufferedResponse(response);
+    chain.doFilter(request, buffered);
+    if (buffered.isPassedThrough()) {
+      return;
+    }
+    if (buffered.getStatus() != HttpServletResponse.SC_OK) {
+      buffered.writeBody();
+      return;
+    }
+
+    byte[] body = buffered.getBody();
+    String etag = "W/\"" + md5(body) + "\""; //$NON-NLS-1$ //$NON-NLS-2$
+    response.setHeader("ETag", etag); //$NON-NLS-1$
+    if (matches(request.getHeader("If-None-Match"), etag)) { //$NON-NLS-1$
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+  }
+
+  private File getFile(HttpServletRequest request) {
+    if (servletContext == null) {
+      return null;
+    }
+    String path = request.getServletPath() + (request.getPathInfo() == null ? "" : request.getPathInfo()); //$NON-NLS-1$
+    String realPath = servletContext.getRealPath(path);
+    if (realPath == null) {
+      return null;
+    }
+    File file = new File(realPath);
+    return file.isFile() ? file : null;
+  }
+
+  static boolean isVersioned(HttpServletRequest request) {
+    String query = request.getQueryString();
+    if (query == null) {
+      return false;
+    }
+    for (String parameter : query.split("&")) { //$NON-NLS-1$
+      String name = parameter.substring(0, parameter.indexOf('=') < 0 ? parameter.length() : parameter.indexOf('='));
+      for (String versionParameter : VERSION_PARAMETERS) {
+        if (versionParameter.equals(name) && parameter.length() > name.length() + 1) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  static boolean isStaticResource(HttpServletRequest request) {
+    if (!"GET".equals(request.getMethod())) { //$NON-NLS-1$
+      return false;
+    }
+    String uri = request.getRequestURI().toLowerCase();
+    for (String extension : STATIC_EXTENSIONS) {
+      if (uri.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Weak comparison, as If-None-Match requires.
+   */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) { //$NON-NLS-1$
+      candidate = candidate.trim();
+      if (candidate.equals("*") || opaque(candidate).equals(opaque(etag))) { //$NON-NLS-1$
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String opaque(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag; //$NON-NLS-1$
+  }
+
+  private static String md5(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(bytes); //$NON-NLS-1$
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Holds the body back so the ETag can be computed before anything is sent. Errors and
+   * redirects go straight to the client.
+   */
+  private static class BufferedResponse extends HttpServletResponseWrapper {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private ServletOutputStream outputStream;
+
+    private PrintWriter writer;
+
+    private int status = SC_OK;
+
+    private boolean passedThrough;
+
+    BufferedResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public void setStatus(int sc) {
+      status = sc;
+      super.setStatus(sc);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void setStatus(int sc, String sm) {
+      status = sc;
+      super.setStatus(sc, sm);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+      passedThrough = true;
+      super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+      passedThrough = true;
+      super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+      passedThrough = true;
+      super.sendRedirect(location);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      // set once the body is complete
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (writer != null) {
+        throw new IllegalStateException("getWriter() has already been called"); //$NON-NLS-1$
+      }
+      if (outputStream == null) {
+        outputStream = new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            body.write(b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            body.write(b, off, len);
+          }
+        };
+      }
+      return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (outputStream != null) {
+        throw new IllegalStateException("getOutputStream() has already been called"); //$NON-NLS-1$
+      }
+      if (writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter(body, getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    int getStatus() {
+      return status;
+    }
+
+    boolean isPassedThrough() {
+      return passedThrough;
+    }
+
+    byte[] getBody() throws IOException {
+      flushBuffer();
+      return body.toByteArray();
+    }
+
+    void writeBody() throws IOException {
+      byte[] bytes = getBody();
+      if (bytes.length > 0) {
+        getResponse().setContentLength(bytes.length);
+        getResponse().getOutputStream().write(bytes);
+      }
+    }
+  }
+
+}
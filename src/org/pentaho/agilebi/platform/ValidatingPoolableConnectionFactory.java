@@ -0,0 +1,143 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.ObjectPool;
+import org.pentaho.di.core.database.DatabaseInterface;
+import org.pentaho.di.core.database.DatabaseMeta;
+
+/**
+ * Validates pooled connections without relying on a hard coded "select 1", which isn't
+ * valid SQL on Oracle, DB2 and a few others. A configured validation query is used as is;
+ * without one the connection is checked with JDBC 4 {@link Connection#isValid(int)}, and
+ * drivers that don't implement that get a query matching the connection's dialect.
+ */
+class ValidatingPoolableConnectionFactory extends PoolableConnectionFactory {
+
+  private final String validationQuery;
+
+  private final String fallbackQuery;
+
+  private final int timeoutSeconds;
+
+  private volatile boolean useIsValid;
+
+  ValidatingPoolableConnectionFactory(ConnectionFactory connectionFactory, ObjectPool pool,
+      KeyedObjectPoolFactory statementPoolFactory, DatabaseMeta databaseMeta, DatasourcePoolConfig config) {
+    super(connectionFactory, pool, statementPoolFactory, config.getValidationQuery(), false, true);
+    this.validationQuery = config.getValidationQuery();
+    this.fallbackQuery = getDialectValidationQuery(databaseMeta);
+    this.timeoutSeconds = config.getValidationTimeoutSeconds();
+    this.useIsValid = validationQuery == null;
+  }
+
+  @Override
+  public void validateConnection(Connection conn) throws SQLException {
+    if (!useIsValid) {
+      if (validationQuery != null) {
+        super.validateConnection(conn);
+      } else {
+        runQuery(conn, fallbackQuery);
+      }
+      return;
+    }
+
+    if (conn.isClosed()) {
+      throw new SQLException("validateConnection: connection closed"); //$NON-NLS-1$
+    }
+    try {
+      if (!conn.isValid(timeoutSeconds)) {
+        throw new SQLException("validateConnection: connection is no longer valid"); //$NON-NLS-1$
+      }
+    } catch (AbstractMethodError e) {
+      // pre JDBC 4 driver, use the dialect's query from now on
+      useIsValid = false;
+      runQuery(conn, fallbackQuery);
+    }
+  }
+
+  private void runQuery(Connection conn, String query) throws SQLException {
+    Statement stmt = null;
+    ResultSet rs = null;
+    try {
+      stmt = conn.createStatement();
+      if (timeoutSeconds > 0) {
+        stmt.setQueryTimeout(timeoutSeconds);
+      }
+      rs = stmt.executeQuery(query);
+      if (!rs.next()) {
+        throw new SQLException("validationQuery didn't return a row"); //$NON-NLS-1$
+      }
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (Exception e) {
+          // ignored
+        }
+      }
+      if (stmt != null) {
+        try {
+          stmt.close();
+        } catch (Exception e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the cheapest query that returns a single row on the connection's database.
+   */
+  static String getDialectValidationQuery(DatabaseMeta databaseMeta) {
+    DatabaseInterface databaseInterface = databaseMeta == null ? null : databaseMeta.getDatabaseInterface();
+    String pluginId = databaseInterface == null ? null : databaseInterface.getPluginId();
+    if (pluginId == null) {
+      return "SELECT 1"; //$NON-NLS-1$
+    }
+    pluginId = pluginId.toUpperCase();
+    if (pluginId.equals("ORACLE") || pluginId.equals("ORACLERDB")) { //$NON-NLS-1$ //$NON-NLS-2$
+      return "SELECT 1 FROM DUAL"; //$NON-NLS-1$
+    }
+    if (pluginId.equals("DB2") || pluginId.equals("AS/400")) { //$NON-NLS-1$ //$NON-NLS-2$
+      return "SELECT 1 FROM SYSIBM.SYSDUMMY1"; //$NON-NLS-1$
+    }
+    if (pluginId.equals("DERBY")) { //$NON-NLS-1$
+      return "VALUES 1"; //$NON-NLS-1$
+    }
+    if (pluginId.equals("HYPERSONIC")) { //$NON-NLS-1$
+      return "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS"; //$NON-NLS-1$
+    }
+    if (pluginId.equals("FIREBIRD") || pluginId.equals("INTERBASE")) { //$NON-NLS-1$ //$NON-NLS-2$
+      return "SELECT 1 FROM RDB$DATABASE"; //$NON-NLS-1$
+    }
+    if (pluginId.equals("INFORMIX")) { //$NON-NLS-1$
+      return "SELECT 1 FROM SYSTABLES WHERE TABID = 1"; //$NON-NLS-1$
+    }
+    return "SELECT 1"; //$NON-NLS-1$
+  }
+
+}
@@ -0,0 +1,63 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.SqlPhysicalModel;
+import org.pentaho.metadata.util.ThinModelConverter;
+import org.pentaho.metadata.util.XmiParser;
+import org.pentaho.platform.api.data.DBDatasourceServiceException;
+
+/**
+ * Reads the connection of the SQL physical model stored in a metadata XMI file. The
+ * datasource services use the XMI file path as datasource name.
+ */
+class XmiDatabaseMetaLoader {
+
+  private XmiDatabaseMetaLoader() {
+  }
+
+  static DatabaseMeta load(String dsName) throws DBDatasourceServiceException {
+    Domain domain = null;
+    FileInputStream fis = null;
+    try {
+      XmiParser parser = new XmiParser();
+      fis = new FileInputStream(new File(dsName));
+      domain = parser.parseXmi(fis);
+    } catch (Exception e) {
+      throw new DBDatasourceServiceException(e);
+    } finally {
+      IOUtils.closeQuietly(fis);
+    }
+
+    if (domain.getPhysicalModels().size() == 0 || 
+        !(domain.getPhysicalModels().get(0) instanceof SqlPhysicalModel)) {
+      throw new DBDatasourceServiceException("No SQL Physical Model Available");
+    }
+
+    SqlPhysicalModel model = (SqlPhysicalModel) domain.getPhysicalModels().get(0);
+
+    return ThinModelConverter.convertToLegacy(model.getId(), model.getDatasource());
+  }
+
+}
@@ -0,0 +1,500 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.registry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.OrderedFileRegistry;
+import org.pentaho.metadata.registry.SimpleRegistry;
+import org.pentaho.metadata.registry.Verb;
+
+/**
+ * Lineage registry kept in memory with hash indexes by id, type and verb, and persisted in an
+ * append-only journal. A commit appends the entities and links added since the last commit,
+ * loading replays the journal. Entities that were added again supersede their earlier records;
+ * once the journal holds more than twice as many records as the registry it is compacted into
+ * a fresh journal, written to a temporary file and renamed.
+ * 
+ * When there is no journal yet the entities and links of a legacy registry.xml are imported.
+ * 
+ * The lists of {@link SimpleRegistry} are not used, the indexes are the only copy of the
+ * registry and every method reading or changing the registry is overridden.
+ */
+public class JournalRegistry extends SimpleRegistry implements Closeable {
+
+  private static final char ENTITY = 'E';
+
+  private static final char LINK = 'L';
+
+  private static final char ENTITY_REMOVED = 'D';
+
+  private static final char LINK_REMOVED = 'U';
+
+  private static final String ENCODING = "UTF-8"; //$NON-NLS-1$
+
+  private static LogChannelInterface log = new LogChannel(JournalRegistry.class.getSimpleName());
+
+  private final File journal;
+
+  private final File legacyFile;
+
+  private final Map<String, Entity> entities = new LinkedHashMap<String, Entity>();
+
+  private final Map<String, List<Entity>> entitiesById = new HashMap<String, List<Entity>>();
+
+  private final Map<String, List<Entity>> entitiesByType = new HashMap<String, List<Entity>>();
+
+  private final Map<String, Link> links = new LinkedHashMap<String, Link>();
+
+  private final Map<String, List<Link>> linksByVerb = new HashMap<String, List<Link>>();
+
+  private final Map<String, List<Link>> linksBySubject = new HashMap<String, List<Link>>();
+
+  private final Map<String, List<Link>> linksByObject = new HashMap<String, List<Link>>();
+
+  private final List<String> pending = new ArrayList<String>();
+
+  private int journalRecords;
+
+  private boolean replaying;
+
+  /**
+   * @param journal
+   *          the journal file
+   * @param legacyFile
+   *          registry.xml of an {@link OrderedFileRegistry} to import if there is no journal,
+   *          can be null
+   */
+  public JournalRegistry(File journal, File legacyFile) {
+    this.journal = journal;
+    this.legacyFile = legacyFile;
+  }
+
+  @Override
+  public void init() throws Exception {
+    load();
+  }
+
+  @Override
+  protected synchronized void load() throws Exception {
+    if (!journal.exists()) {
+      if (legacyFile != null && legacyFile.exists()) {
+        importLegacy();
+      }
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    replaying = true;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), ENCODING));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() == 0) {
+          continue;
+        }
+        try {
+          replay(split(line));
+          journalRecords++;
+        } catch (RuntimeException e) {
+          // most likely a record cut off by a crash while appending
+          log.logError("Skipping invalid lineage record: " + line); //$NON-NLS-1$
+        }
+      }
+    } finally {
+      replaying = false;
+      reader.close();
+    }
+    log.logDetailed("Loaded " + entities.size() + " entities and " + links.size() + " links in " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$
+    compactIfNeeded();
+  }
+
+  private void replay(String[] fields) {
+    if (fields[0].charAt(0) == ENTITY) {
+      addEntity(new Entity(fields[1], fields[2], fields[3]));
+    } else if (fields[0].charAt(0) == ENTITY_REMOVED) {
+      Entity entity = getEntity(fields[1], fields[2]);
+      if (entity != null) {
+        removeEntity(entity);
+      }
+    } else if (fields[0].charAt(0) == LINK_REMOVED) {
+      Link link = links.get(join(fields[2], fields[1], fields[3], fields[5], fields[4]));
+      if (link != null) {
+        removeLink(link);
+      }
+    } else if (fields[0].charAt(0) == LINK) {
+      Verb verb = getVerb(fields[3]);
+      if (verb == null) {
+        // written by a version that knows more verbs than this one
+        log.logError("Skipping lineage link with unknown verb " + fields[3]); //$NON-NLS-1$
+        return;
+      }
+      Entity subject = getOrCreateEntity(fields[1], fields[2]);
+      Entity object = getOrCreateEntity(fields[4], fields[5]);
+      addLink(new Link(subject, verb, object));
+    } else {
+      throw new IllegalArgumentException(fields[0]);
+    }
+  }
+
+  private void importLegacy() throws Exception {
+    // entities are collected as the legacy registry loads them, including those without links
+    final List<Entity> legacyEntities = new ArrayList<Entity>();
+    OrderedFileRegistry legacy = new OrderedFileRegistry() {
+      @Override
+      public void addEntity(Entity entity) {
+        legacyEntities.add(entity);
+        super.addEntity(entity);
+      }
+    };
+    legacy.setFilePath(legacyFile.getAbsolutePath());
+    legacy.init();
+    for (Entity entity : legacyEntities) {
+      addEntity(entity);
+    }
+    for (Link link : legacy.getLinks()) {
+      Entity subject = legacy.getEntity(link.getSubjectId(), link.getSubjectTypeId());
+      Entity object = legacy.getEntity(link.getObjectId(), link.getObjectTypeId());
+      if (getEntity(link.getSubjectId(), link.getSubjectTypeId()) == null) {
+        addEntity(subject != null ? subject : new Entity(link.getSubjectId(), link.getSubjectId(), link.getSubjectTypeId()));
+      }
+      if (getEntity(link.getObjectId(), link.getObjectTypeId()) == null) {
+        addEntity(object != null ? object : new Entity(link.getObjectId(), link.getObjectId(), link.getObjectTypeId()));
+      }
+      addLink(link);
+    }
+    log.logBasic("Imported " + entities.size() + " entities and " + links.size() + " links from " + legacyFile); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    compact();
+  }
+
+  @Override
+  public synchronized void addEntity(Entity entity) {
+    String key = key(entity.getId(), entity.getTypeId());
+    Entity previous = entities.put(key, entity);
+    if (previous != null) {
+      remove(entitiesById, entity.getId(), previous);
+      remove(entitiesByType, entity.getTypeId(), previous);
+    }
+    add(entitiesById, entity.getId(), entity);
+    add(entitiesByType, entity.getTypeId(), entity);
+    if (!replaying) {
+      pending.add(join(String.valueOf(ENTITY), entity.getId(), entity.getTitle(), entity.getTypeId()));
+    }
+  }
+
+  @Override
+  public synchronized void addLink(Link link) {
+    String key = key(link);
+    if (links.containsKey(key)) {
+      return;
+    }
+    links.put(key, link);
+    add(linksByVerb, link.getVerbId(), link);
+    add(linksBySubject, key(link.getSubjectId(), link.getSubjectTypeId()), link);
+    add(linksByObject, key(link.getObjectId(), link.getObjectTypeId()), link);
+    if (!replaying) {
+      pending.add(join(String.valueOf(LINK), link.getSubjectId(), link.getSubjectTypeId(), link.getVerbId(),
+          link.getObjectId(), link.getObjectTypeId()));
+    }
+  }
+
+  /**
+   * Removes the entity and its links.
+   */
+  public synchronized void removeEntity(Entity entity) {
+    String key = key(entity.getId(), entity.getTypeId());
+    Entity removed = entities.remove(key);
+    if (removed == null) {
+      return;
+    }
+    remove(entitiesById, removed.getId(), removed);
+    remove(entitiesByType, removed.getTypeId(), removed);
+    for (Link link : copy(linksBySubject.get(key))) {
+      removeLink(link);
+    }
+    for (Link link : copy(linksByObject.get(key))) {
+      removeLink(link);
+    }
+    if (!replaying) {
+      pending.add(join(String.valueOf(ENTITY_REMOVED), removed.getId(), removed.getTypeId()));
+    }
+  }
+
+  public synchronized void removeLink(Link link) {
+    Link removed = links.remove(key(link));
+    if (removed == null) {
+      return;
+    }
+    remove(linksByVerb, removed.getVerbId(), removed);
+    remove(linksBySubject, key(removed.getSubjectId(), removed.getSubjectTypeId()), removed);
+    remove(linksByObject, key(removed.getObjectId(), removed.getObjectTypeId()), removed);
+    if (!replaying) {
+      pending.add(join(String.valueOf(LINK_REMOVED), removed.getSubjectId(), removed.getSubjectTypeId(),
+          removed.getVerbId(), removed.getObjectId(), removed.getObjectTypeId()));
+    }
+  }
+
+  @Override
+  public synchronized Entity getEntity(String id, String typeId) {
+    return entities.get(key(id, typeId));
+  }
+
+  @Override
+  public synchronized List<Link> getLinks() {
+    return new ArrayList<Link>(links.values());
+  }
+
+  public synchronized List<Entity> getEntitiesById(String id) {
+    return copy(entitiesById.get(id));
+  }
+
+  public synchronized List<Entity> getEntitiesOfType(String typeId) {
+    return copy(entitiesByType.get(typeId));
+  }
+
+  public synchronized List<Link> getLinksByVerb(String verbId) {
+    return copy(linksByVerb.get(verbId));
+  }
+
+  /**
+   * @return the links whose subject is the given entity
+   */
+  public synchronized List<Link> getLinksFrom(String id, String typeId) {
+    return copy(linksBySubject.get(key(id, typeId)));
+  }
+
+  /**
+   * @return the links whose object is the given entity
+   */
+  public synchronized List<Link> getLinksTo(String id, String typeId) {
+    return copy(linksByObject.get(key(id, typeId)));
+  }
+
+  /**
+   * Appends the changes since the last commit to the journal.
+   */
+  @Override
+  public synchronized void commit() throws Exception {
+    if (pending.isEmpty()) {
+      return;
+    }
+    journal.getParentFile().mkdirs();
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), ENCODING));
+    try {
+      for (String record : pending) {
+        writer.write(record);
+        writer.write('\n');
+      }
+    } finally {
+      writer.close();
+    }
+    journalRecords += pending.size();
+    pending.clear();
+    compactIfNeeded();
+  }
+
+  private void compactIfNeeded() throws IOException {
+    if (journalRecords > 2 * (entities.size() + links.size())) {
+      compact();
+    }
+  }
+
+  /**
+   * Rewrites the journal with one record per entity and link.
+   */
+  public synchronized void compact() throws IOException {
+    journal.getParentFile().mkdirs();
+    File tmp = new File(journal.getPath() + ".tmp"); //$NON-NLS-1$
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), ENCODING));
+    try {
+      for (Entity entity : entities.values()) {
+        writer.write(join(String.valueOf(ENTITY), entity.getId(), entity.getTitle(), entity.getTypeId()));
+        writer.write('\n');
+      }
+      for (Link link : links.values()) {
+        writer.write(join(String.valueOf(LINK), link.getSubjectId(), link.getSubjectTypeId(), link.getVerbId(),
+            link.getObjectId(), link.getObjectTypeId()));
+        writer.write('\n');
+      }
+    } finally {
+      writer.close();
+    }
+    // windows doesn't rename over an existing file
+    if (!tmp.renameTo(journal) && !(journal.delete() && tmp.renameTo(journal))) {
+      tmp.delete();
+      throw new IOException("Could not rename " + tmp + " to " + journal); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    journalRecords = entities.size() + links.size();
+    pending.clear();
+  }
+
+  /**
+   * Commits the pending changes.
+   */
+  public void close() throws IOException {
+    try {
+      commit();
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+  private Entity getOrCreateEntity(String id, String typeId) {
+    Entity entity = getEntity(id, typeId);
+    if (entity == null) {
+      entity = new Entity(id, id, typeId);
+      addEntity(entity);
+    }
+    return entity;
+  }
+
+  private static Map<String, Verb> verbs;
+
+  /**
+   * Verbs are looked up among the constants of {@link Verb}.
+   * 
+   * @return the verb or null if it is unknown
+   */
+  private static synchronized Verb getVerb(String id) {
+    if (verbs == null) {
+      verbs = new HashMap<String, Verb>();
+      for (Field field : Verb.class.getFields()) {
+        if (Modifier.isStatic(field.getModifiers()) && field.getType() == Verb.class) {
+          try {
+            Verb verb = (Verb) field.get(null);
+            verbs.put(verb.getId(), verb);
+          } catch (IllegalAccessException e) {
+            // public constants only
+          }
+        }
+      }
+    }
+    return verbs.get(id);
+  }
+
+  private static String key(String id, String typeId) {
+    return typeId + '\t' + id;
+  }
+
+  private static String key(Link link) {
+    return join(link.getSubjectTypeId(), link.getSubjectId(), link.getVerbId(), link.getObjectTypeId(),
+        link.getObjectId());
+  }
+
+  private static <T> void add(Map<String, List<T>> index, String key, T value) {
+    List<T> values = index.get(key);
+    if (values == null) {
+      values = new ArrayList<T>(2);
+      index.put(key, values);
+    }
+    values.add(value);
+  }
+
+  private static <T> void remove(Map<String, List<T>> index, String key, T value) {
+    List<T> values = index.get(key);
+    if (values != null) {
+      values.remove(value);
+      if (values.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  private static <T> List<T> copy(List<T> values) {
+    return values == null ? Collections.<T> emptyList() : new ArrayList<T>(values);
+  }
+
+  /**
+   * Tab separated fields, tabs, line breaks and backslashes in values are escaped.
+   */
+  static String join(String... fields) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        sb.append('\t');
+      }
+      String field = fields[i] == null ? "" : fields[i]; //$NON-NLS-1$
+      for (int j = 0; j < field.length(); j++) {
+        char c = field.charAt(j);
+        switch (c) {
+          case '\\':
+            sb.append("\\\\"); //$NON-NLS-1$
+            break;
+          case '\t':
+            sb.append("\\t"); //$NON-NLS-1$
+            break;
+          case '\n':
+            sb.append("\\n"); //$NON-NLS-1$
+            break;
+          case '\r':
+            sb.append("\\r"); //$NON-NLS-1$
+            break;
+          default:
+            sb.append(c);
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  static String[] split(String record) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    for (int i = 0; i < record.length(); i++) {
+      char c = record.charAt(i);
+      if (c == '\t') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else if (c == '\\' && i + 1 < record.length()) {
+        char next = record.charAt(++i);
+        field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[fields.size()]);
+  }
+
+}
@@ -0,0 +1,144 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.registry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.IMetadataRegistry;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.Verb;
+
+/**
+ * Impact queries over the lineage in a registry. An entity depends on another one if the other
+ * one populates it (a transformation populates a table) or if it uses the other one (a model
+ * uses a table, a view uses a model). Uses the indexes of a {@link JournalRegistry}, other
+ * registries are scanned.
+ */
+public class LineageGraph {
+
+  private final IMetadataRegistry registry;
+
+  public LineageGraph(IMetadataRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * @return the links whose subject is the given entity
+   */
+  public List<Link> getLinksFrom(String id, String typeId) {
+    if (registry instanceof JournalRegistry) {
+      return ((JournalRegistry) registry).getLinksFrom(id, typeId);
+    }
+    List<Link> links = new ArrayList<Link>();
+    for (Link link : registry.getLinks()) {
+      if (id.equals(link.getSubjectId()) && typeId.equals(link.getSubjectTypeId())) {
+        links.add(link);
+      }
+    }
+    return links;
+  }
+
+  /**
+   * @return the links whose object is the given entity
+   */
+  public List<Link> getLinksTo(String id, String typeId) {
+    if (registry instanceof JournalRegistry) {
+      return ((JournalRegistry) registry).getLinksTo(id, typeId);
+    }
+    List<Link> links = new ArrayList<Link>();
+    for (Link link : registry.getLinks()) {
+      if (id.equals(link.getObjectId()) && typeId.equals(link.getObjectTypeId())) {
+        links.add(link);
+      }
+    }
+    return links;
+  }
+
+  /**
+   * @return the entities the given entity depends on directly
+   */
+  public List<Entity> getDependencies(String id, String typeId) {
+    List<Entity> dependencies = new ArrayList<Entity>();
+    for (Link link : getLinksTo(id, typeId)) {
+      if (Verb.VERB_POPULATES.getId().equals(link.getVerbId())) {
+        addEntity(dependencies, link.getSubjectId(), link.getSubjectTypeId());
+      }
+    }
+    for (Link link : getLinksFrom(id, typeId)) {
+      if (Verb.VERB_USES.getId().equals(link.getVerbId())) {
+        addEntity(dependencies, link.getObjectId(), link.getObjectTypeId());
+      }
+    }
+    return dependencies;
+  }
+
+  /**
+   * @return the entities depending directly on the given entity
+   */
+  public List<Entity> getDependents(String id, String typeId) {
+    List<Entity> dependents = new ArrayList<Entity>();
+    for (Link link : getLinksFrom(id, typeId)) {
+      if (Verb.VERB_POPULATES.getId().equals(link.getVerbId())) {
+        addEntity(dependents, link.getObjectId(), link.getObjectTypeId());
+      }
+    }
+    for (Link link : getLinksTo(id, typeId)) {
+      if (Verb.VERB_USES.getId().equals(link.getVerbId())) {
+        addEntity(dependents, link.getSubjectId(), link.getSubjectTypeId());
+      }
+    }
+    return dependents;
+  }
+
+  /**
+   * Finds everything that depends on the given entity, directly or through other entities, such
+   * as the tables a transformation loads, the models on those tables and the views on the
+   * models.
+   * 
+   * @param impactTypeId
+   *          type of the entities to return, null for all
+   */
+  public List<Entity> getImpact(String id, String typeId, String impactTypeId) {
+    List<Entity> impact = new ArrayList<Entity>();
+    Set<String> visited = new HashSet<String>();
+    visited.add(typeId + '\t' + id);
+    LinkedList<Entity> queue = new LinkedList<Entity>(getDependents(id, typeId));
+    while (!queue.isEmpty()) {
+      Entity entity = queue.removeFirst();
+      if (!visited.add(entity.getTypeId() + '\t' + entity.getId())) {
+        continue;
+      }
+      if (impactTypeId == null || impactTypeId.equals(entity.getTypeId())) {
+        impact.add(entity);
+      }
+      queue.addAll(getDependents(entity.getId(), entity.getTypeId()));
+    }
+    return impact;
+  }
+
+  private void addEntity(List<Entity> entities, String id, String typeId) {
+    Entity entity = registry.getEntity(id, typeId);
+    entities.add(entity != null ? entity : new Entity(id, id, typeId));
+  }
+
+}
@@ -0,0 +1,150 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Journal registry whose {@link #commit()} only schedules the write. Added entities and links
+ * are queued in memory; commits that follow each other within the delay are appended to the
+ * journal once, in the background, and never later than the maximum delay after the first of
+ * them. {@link #close()} writes what is still queued.
+ */
+public class WriteBehindRegistry extends JournalRegistry {
+
+  public static final long DEFAULT_DELAY_MILLIS = 2000L;
+
+  public static final long DEFAULT_MAX_DELAY_MILLIS = 10000L;
+
+  private static LogChannelInterface log = new LogChannel(WriteBehindRegistry.class.getSimpleName());
+
+  private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "agilebi-registry-flush"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final Runnable flushTask = new Runnable() {
+    public void run() {
+      try {
+        flush();
+      } catch (Exception e) {
+        log.logError("Could not write the lineage journal", e); //$NON-NLS-1$
+      }
+    }
+  };
+
+  /**
+   * guards the schedule, not held while writing so commit() never waits for the writer
+   */
+  private final Object scheduleLock = new Object();
+
+  private long delayMillis = DEFAULT_DELAY_MILLIS;
+
+  private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+  // guarded by scheduleLock
+  private ScheduledFuture<?> pendingFlush;
+
+  // guarded by scheduleLock, 0 if there are no uncommitted changes
+  private long firstPendingCommit;
+
+  public WriteBehindRegistry(File journal, File legacyFile) {
+    super(journal, legacyFile);
+  }
+
+  public void setDelayMillis(long delayMillis) {
+    this.delayMillis = delayMillis;
+  }
+
+  public void setMaxDelayMillis(long maxDelayMillis) {
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Schedules writing the queued changes and returns right away.
+   */
+  @Override
+  public void commit() {
+    synchronized (scheduleLock) {
+      long now = System.currentTimeMillis();
+      if (firstPendingCommit == 0) {
+        firstPendingCommit = now;
+      }
+      if (pendingFlush != null) {
+        if (now - firstPendingCommit >= maxDelayMillis) {
+          // the pending write is due, don't push it back any further
+          return;
+        }
+        pendingFlush.cancel(false);
+      }
+      long delay = Math.max(0, Math.min(delayMillis, firstPendingCommit + maxDelayMillis - now));
+      pendingFlush = flusher.schedule(flushTask, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Appends the queued changes to the journal now.
+   */
+  public void flush() throws Exception {
+    synchronized (scheduleLock) {
+      firstPendingCommit = 0;
+      pendingFlush = null;
+    }
+    try {
+      super.commit();
+    } catch (Exception e) {
+      // the changes stay queued for the next commit
+      synchronized (scheduleLock) {
+        if (firstPendingCommit == 0) {
+          firstPendingCommit = System.currentTimeMillis();
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Stops the background writer and writes the queued changes.
+   */
+  @Override
+  public void close() throws IOException {
+    flusher.shutdownNow();
+    try {
+      flush();
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      IOException ioe = new IOException(e.getMessage());
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+}
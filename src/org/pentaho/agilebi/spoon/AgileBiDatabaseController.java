@@ -60,7 +60,7 @@ public class AgileBiDatabaseController extends AbstractXulEventHandler {
 	public void openModeler() {
 	  getDbController();
 		this.dbExplorerController.close();
-		TableModelerSource source = new TableModelerSource(this.dbExplorerController.getDatabaseMeta(), this.dbExplorerController.getSelectedTable(), this.dbExplorerController.getSelectedSchema());
+		TableModelerSource source = new CachedTableModelerSource(this.dbExplorerController.getDatabaseMeta(), this.dbExplorerController.getSelectedTable(), this.dbExplorerController.getSelectedSchema());
 		try {
 			ModelerWorkspace model = new ModelerWorkspace(new SpoonModelerWorkspaceHelper(), SpoonModelerWorkspaceHelper.initGeoContext());
 			ModelerWorkspaceUtil.populateModelFromSource(model, source);
@@ -77,7 +77,7 @@ public class AgileBiDatabaseController extends AbstractXulEventHandler {
 	public void quickVisualize() {
 	  getDbController();
 		this.dbExplorerController.close();
-		TableModelerSource source = new TableModelerSource(this.dbExplorerController.getDatabaseMeta(), this.dbExplorerController.getSelectedTable(), this.dbExplorerController.getSelectedSchema() == null ? "" : this.dbExplorerController.getSelectedSchema()); //$NON-NLS-1$
+		TableModelerSource source = new CachedTableModelerSource(this.dbExplorerController.getDatabaseMeta(), this.dbExplorerController.getSelectedTable(), this.dbExplorerController.getSelectedSchema() == null ? "" : this.dbExplorerController.getSelectedSchema()); //$NON-NLS-1$
 		if (source.getSchemaName() == null) {
 			source.setSchemaName(""); //$NON-NLS-1$
 		}
@@ -18,7 +18,6 @@
 package org.pentaho.agilebi.spoon;
 
 import org.pentaho.agilebi.modeler.ModelerException;
-import org.pentaho.agilebi.modeler.util.ModelerSourceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.database.DatabaseMeta;
@@ -122,7 +121,7 @@ public class KettleModelerSource extends TableModelerSource {
    * @throws ModelerException if we cannot generate the domain
    */
   public Domain generateDomain() throws ModelerException {
-    Domain d = ModelerSourceUtil.generateDomain(getDatabaseMeta(), getSchemaName(), getTableName());
+    Domain d = TableMetadataCache.getInstance().getDomain(this);
     for(LogicalModel lModel : d.getLogicalModels()) {
       lModel.setProperty("SUPPORTS_OLAP", Boolean.TRUE.toString());
     }
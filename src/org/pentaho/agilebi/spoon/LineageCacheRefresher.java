@@ -0,0 +1,195 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.swt.widgets.Display;
+import org.pentaho.agilebi.platform.JettyServerConfig;
+import org.pentaho.agilebi.registry.LineageGraph;
+import org.pentaho.agilebi.spoon.visualizations.analyzer.MondrianCatalogCache;
+import org.pentaho.di.core.lifecycle.pdi.AgileBILifecycleListener;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.job.Job;
+import org.pentaho.di.job.JobMeta;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.ui.spoon.Spoon;
+import org.pentaho.di.ui.spoon.TabMapEntry;
+import org.pentaho.di.ui.spoon.job.JobGraph;
+import org.pentaho.di.ui.spoon.trans.TransGraph;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.RegistryFactory;
+import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.util.RegistryUtil;
+
+/**
+ * Refreshes the caches of the models depending on the tables a transformation or job loaded
+ * once it finishes successfully in Spoon. The affected models are found through the lineage
+ * registry, their Mondrian data is flushed and, if the embedded server runs, their schemas and
+ * connection pools are loaded again in the background. Other models keep their caches. The
+ * cached JDBC metadata of the loaded tables is dropped as well.
+ */
+public class LineageCacheRefresher {
+
+  private static final int POLL_MILLIS = 2000;
+
+  private static LogChannelInterface log = new LogChannel(LineageCacheRefresher.class.getSimpleName());
+
+  private static RegistryUtil UTIL = new RegistryUtil();
+
+  private static LineageCacheRefresher instance = new LineageCacheRefresher();
+
+  // runs seen in the Spoon tabs -> whether they were seen finished, only used on the UI thread
+  private final Map<Object, Boolean> runs = new WeakHashMap<Object, Boolean>();
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "agilebi-lineage-refresh"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
+  private volatile boolean started;
+
+  private LineageCacheRefresher() {
+  }
+
+  public static LineageCacheRefresher getInstance() {
+    return instance;
+  }
+
+  /**
+   * Watches the transformations and jobs run in Spoon's tabs. Spoon has no listener for the
+   * runs it starts, so the tabs are polled on the UI thread.
+   */
+  public void start(final Display display) {
+    if (started) {
+      return;
+    }
+    started = true;
+    display.timerExec(POLL_MILLIS, new Runnable() {
+      public void run() {
+        if (!started || display.isDisposed()) {
+          return;
+        }
+        try {
+          poll();
+        } catch (Exception e) {
+          log.logError("Could not check finished transformations", e); //$NON-NLS-1$
+        }
+        display.timerExec(POLL_MILLIS, this);
+      }
+    });
+  }
+
+  public void shutdown() {
+    started = false;
+    executor.shutdownNow();
+  }
+
+  private void poll() {
+    Spoon spoon = Spoon.getInstance();
+    if (spoon == null || spoon.delegates == null) {
+      return;
+    }
+    for (TabMapEntry entry : spoon.delegates.tabs.getTabs()) {
+      Object tab = entry.getObject();
+      if (tab instanceof TransGraph) {
+        Trans trans = ((TransGraph) tab).getTrans();
+        if (trans != null && finished(trans, trans.isFinished()) && trans.getErrors() == 0) {
+          TransMeta transMeta = trans.getTransMeta();
+          refresh(transMeta.getRepository(), transMeta.getFilename(), Type.TYPE_TRANSFORMATION);
+        }
+      } else if (tab instanceof JobGraph) {
+        Job job = ((JobGraph) tab).getJob();
+        if (job != null && finished(job, job.isFinished())
+            && (job.getResult() == null || job.getResult().getNrErrors() == 0)) {
+          JobMeta jobMeta = job.getJobMeta();
+          refresh(jobMeta.getRepository(), jobMeta.getFilename(), Type.TYPE_JOB);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true the first time a run is seen finished. A run that finished between two polls
+   *         is new and finished at once.
+   */
+  private boolean finished(Object run, boolean isFinished) {
+    if (Boolean.TRUE.equals(runs.get(run))) {
+      return false;
+    }
+    runs.put(run, isFinished);
+    return isFinished;
+  }
+
+  private void refresh(Repository repository, String filename, Type type) {
+    final String id = UTIL.generateCompositeId(repository == null ? null : repository.getName(), filename);
+    final String typeId = type.getId();
+    executor.execute(new Runnable() {
+      public void run() {
+        refresh(id, typeId);
+      }
+    });
+  }
+
+  /**
+   * Flushes the cached data of the models depending on the given transformation or job and
+   * loads them again if the embedded server runs.
+   * 
+   * @return the affected model files
+   */
+  public List<String> refresh(String id, String typeId) {
+    LineageGraph graph = new LineageGraph(RegistryFactory.getInstance().getMetadataRegistry());
+    // the run may have changed the structure of the tables it loaded
+    for (Entity table : graph.getImpact(id, typeId, Type.TYPE_PHYSICAL_TABLE.getId())) {
+      TableMetadataCache.getInstance().invalidate(table.getId());
+    }
+
+    List<String> models = new ArrayList<String>();
+    for (Entity model : graph.getImpact(id, typeId, Type.TYPE_OLAP_MODEL.getId())) {
+      if (new File(model.getId()).exists()) {
+        MondrianCatalogCache.getInstance().flushData(model.getId());
+        models.add(model.getId());
+      }
+    }
+    if (models.isEmpty()) {
+      return models;
+    }
+    log.logBasic("Refreshing " + models.size() + " models loaded by " + id); //$NON-NLS-1$ //$NON-NLS-2$
+    if (AgileBILifecycleListener.isServerStarted()) {
+      PlatformWarmUp warmUp = new PlatformWarmUp(AgileBILifecycleListener.getConsolePort(), models);
+      warmUp.setOpenConnections(JettyServerConfig.load().isWarmUpConnections());
+      warmUp.run();
+    }
+    return models;
+  }
+
+}
@@ -21,6 +21,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.eclipse.swt.SWT;
@@ -31,10 +41,12 @@ import org.pentaho.agilebi.modeler.ModelerMessagesHolder;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.registry.WriteBehindRegistry;
 import org.pentaho.agilebi.spoon.perspective.AgileBiModelerPerspective;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
 import org.pentaho.agilebi.spoon.wizard.EmbeddedWizard;
+import org.pentaho.agilebi.util.Span;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.EngineMetaInterface;
 import org.pentaho.di.core.ProvidesDatabaseConnectionInformation;
@@ -53,10 +65,14 @@ import org.pentaho.di.ui.spoon.Spoon;
 import org.pentaho.di.ui.spoon.SpoonPerspectiveManager;
 import org.pentaho.di.ui.spoon.TabMapEntry;
 import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.registry.Entity;
 import org.pentaho.metadata.registry.IMetadataRegistry;
-import org.pentaho.metadata.registry.OrderedFileRegistry;
+import org.pentaho.metadata.registry.Link;
 import org.pentaho.metadata.registry.RegistryFactory;
 import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.Verb;
+import org.pentaho.metadata.registry.util.RegistryUtil;
+import org.pentaho.metadata.util.XmiParser;
 import org.pentaho.reporting.engine.classic.core.ClassicEngineBoot;
 import org.pentaho.reporting.libraries.base.util.ObjectUtilities;
 import org.pentaho.ui.xul.XulException;
@@ -71,12 +87,30 @@ import org.slf4j.LoggerFactory;
 public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenuController {
 
   private static final String MODELER_NAME = "Model Editor"; 
-  private static final String TEMP_MODELS_FOLDER = "models";
 
   private static ModelerHelper instance = null;
     
   private static Logger logger = LoggerFactory.getLogger(ModelerHelper.class);
 
+  private static RegistryUtil UTIL = new RegistryUtil();
+
+  /**
+   * System property (can be set in kettle.properties) with the seconds model generation may take
+   */
+  public static final String MODEL_GENERATION_TIMEOUT_PROPERTY = "AGILEBI_MODEL_GENERATION_TIMEOUT"; //$NON-NLS-1$
+
+  public static final long DEFAULT_MODEL_GENERATION_TIMEOUT_SECONDS = 300;
+
+  private static final ExecutorService modelGenerationExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "agilebi-model-generation-" + count.incrementAndGet()); //$NON-NLS-1$
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
   static{
 
     try {
@@ -86,8 +120,8 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
       IMetadataRegistry registry = factory.getMetadataRegistry();
       if( registry == null ) {
           try {
-        	  registry = new OrderedFileRegistry();
-        	  ((OrderedFileRegistry) registry).setFilePath(org.pentaho.di.core.Const.getKettleDirectory() + File.separator + "registry.xml"); //$NON-NLS-1$
+        	  String kettleDir = org.pentaho.di.core.Const.getKettleDirectory();
+        	  registry = new WriteBehindRegistry(new File(kettleDir, "lineage.journal"), new File(kettleDir, "registry.xml")); //$NON-NLS-1$ //$NON-NLS-2$
 			factory.setMetadataRegistry(registry);
 			registry.init();
 		} catch (Exception e) {
@@ -101,13 +135,8 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     }
   }
   private ModelerHelper() {
-    File modelsDir = new File(TEMP_MODELS_FOLDER);
-    if(modelsDir.exists()) {
-      for(File file : modelsDir.listFiles()) {
-        file.delete();
-      }
-      modelsDir.delete();
-    }
+    // other Spoon processes may still use their temporary models
+    TemporaryModelStore.getInstance().removeStaleSessions();
   }
   
   public static synchronized ModelerHelper getInstance() {
@@ -317,7 +346,14 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
   }
   
   public static ModelerWorkspace populateModel(ModelerWorkspace model) throws ModelerException {
+    return populateModel(model, createSourceForActiveEntry());
+  }
 
+  /**
+   * Creates the modeler source of the selected step or job entry. Reads the Spoon selection, so
+   * it has to be called on the UI thread.
+   */
+  private static KettleModelerSource createSourceForActiveEntry() throws ModelerException {
     if (!isValidEntrySelected()) {
       throw new ModelerException(BaseMessages.getString(ModelerHelper.class, "InvalidEntrySelected"));
     }
@@ -334,35 +370,197 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     if (source == null) {
       throw new ModelerException(BaseMessages.getString(ModelerHelper.class, "Error.NoModelerSource", connectionInfo.getDatabaseMeta().getName(), connectionInfo.getTableName()));
     }
+    return source;
+  }
 
-    Domain d = source.generateDomain();
+  /**
+   * Generates the domain of the source's table and registers its lineage. Reads the table's
+   * metadata from the database, don't call it on the UI thread.
+   */
+  private static ModelerWorkspace populateModel(ModelerWorkspace model, KettleModelerSource source) throws ModelerException {
+    Span span = Span.start("modeler.populateModel"); //$NON-NLS-1$
+    try {
+      Span generate = Span.start("generateDomain"); //$NON-NLS-1$
+      Domain d;
+      try {
+        d = source.generateDomain();
+      } finally {
+        generate.end();
+      }
 
-    model.setModelSource(source);
-    model.setModelName(connectionInfo.getTableName());
-    model.setDomain(d);
+      model.setModelSource(source);
+      model.setModelName(source.getTableName());
+      model.setDomain(d);
 
-    RegistryFactory factory = RegistryFactory.getInstance();
-    IMetadataRegistry registry = factory.getMetadataRegistry();
+      RegistryFactory factory = RegistryFactory.getInstance();
+      IMetadataRegistry registry = factory.getMetadataRegistry();
+
+      source.registerLineageMetadata(registry);
 
-    source.registerLineageMetadata(registry);
+      Span commit = Span.start("registry.commit"); //$NON-NLS-1$
+      try {
+        registry.commit();
+      } catch (Exception e) {
+        logger.error("Could not commit metadata registry", e);
+      } finally {
+        commit.end();
+      }
+
+      return model;
+    } finally {
+      span.end();
+    }
+  }
 
+  /**
+   * Register that the model saved as {@code fileName} uses the table it was generated from, so
+   * the model's caches can be refreshed when the table is loaded again. Temporary models are
+   * not registered.
+   *
+   * @param model Model that was saved
+   * @param fileName File the model was saved to
+   */
+  public static void registerModelLineage(ModelerWorkspace model, String fileName) {
+    // temporary models are thrown away, their lineage would only pile up
+    if (model.isTemporary()) {
+      return;
+    }
+    addModelLineage(model, fileName);
     try {
-		registry.commit();
-	} catch (Exception e) {
-		logger.error("Could not commit metadata registry", e);
-	}
-    
-    return model;
+      RegistryFactory.getInstance().getMetadataRegistry().commit();
+    } catch (Exception e) {
+      logger.error("Could not commit metadata registry", e);
+    }
+  }
+
+  /**
+   * Adds the model written to {@code fileName} and the table it uses to the registry, temporary
+   * or not, without committing. Used when a saved view refers to the model.
+   *
+   * @return the model's entity
+   */
+  public static Entity addModelLineage(ModelerWorkspace model, String fileName) {
+    IMetadataRegistry registry = RegistryFactory.getInstance().getMetadataRegistry();
+    Entity modelEntity = new Entity(fileName, model.getModelName(), Type.TYPE_OLAP_MODEL.getId());
+    registry.addEntity(modelEntity);
+    if (model.getModelSource() instanceof TableModelerSource) {
+      TableModelerSource source = (TableModelerSource) model.getModelSource();
+      Entity table = new Entity(UTIL.generateCompositeId(source.getDatabaseName(), source.getSchemaName(), source.getTableName()), source.getTableName(), Type.TYPE_PHYSICAL_TABLE.getId());
+      registry.addEntity(table);
+      registry.addLink(new Link(modelEntity, Verb.VERB_USES, table));
+    }
+    return modelEntity;
+  }
+
+  /**
+   * Receives a model generated in the background, on the UI thread.
+   */
+  protected interface ModelReadyCallback {
+    void modelReady(ModelerWorkspace model) throws Exception;
+  }
+
+  /**
+   * Generates the model of the selected step or job entry in the background while a cancelable
+   * wait box is shown, then hands it to the callback on the UI thread. Generation is abandoned
+   * when it is canceled or takes longer than {@value #MODEL_GENERATION_TIMEOUT_PROPERTY}
+   * seconds (default {@value #DEFAULT_MODEL_GENERATION_TIMEOUT_SECONDS}).
+   */
+  protected void populateModelInBackground(final ModelReadyCallback callback) throws ModelerException,
+    XulException {
+    final KettleModelerSource source = createSourceForActiveEntry();
+    final ModelerWorkspace model = createModelerWorkspace();
+    final long timeoutSeconds = Const.toLong(System.getProperty(MODEL_GENERATION_TIMEOUT_PROPERTY),
+        DEFAULT_MODEL_GENERATION_TIMEOUT_SECONDS);
+    final Display display = Display.getCurrent();
+
+    XulWaitBox box = (XulWaitBox) document.createElement("waitbox"); //$NON-NLS-1$
+    box.setIndeterminate(true);
+    box.setCanCancel(true);
+    box.setTitle(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_title"));
+    box.setMessage(BaseMessages.getString(ModelerHelper.class, "ModelGeneration.Message", source.getTableName()));
+    box.setCancelLabel(BaseMessages.getString(ModelerWorkspace.class, "wait_dialog_btn"));
+    box.setDialogParent(((Spoon) SpoonFactory.getInstance()).getShell());
+    box.setRunnable(new WaitBoxRunnable(box) {
+      private volatile Future<ModelerWorkspace> generation;
+
+      private volatile boolean canceled;
+
+      @Override
+      public void run() {
+        Exception error = null;
+        try {
+          generation = modelGenerationExecutor.submit(new Callable<ModelerWorkspace>() {
+            public ModelerWorkspace call() throws Exception {
+              return populateModel(model, source);
+            }
+          });
+          if (canceled) {
+            // canceled before there was a generation to cancel
+            generation.cancel(true);
+            return;
+          }
+          generation.get(timeoutSeconds, TimeUnit.SECONDS);
+          if (canceled) {
+            return;
+          }
+        } catch (CancellationException e) {
+          logger.info("Model generation for " + source.getTableName() + " canceled"); //$NON-NLS-1$ //$NON-NLS-2$
+          return;
+        } catch (TimeoutException e) {
+          generation.cancel(true);
+          error = new ModelerException(BaseMessages.getString(ModelerHelper.class, "ModelGeneration.Timeout",
+              source.getTableName(), Long.toString(timeoutSeconds)));
+        } catch (InterruptedException e) {
+          generation.cancel(true);
+          return;
+        } catch (ExecutionException e) {
+          error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+          waitBox.stop();
+        }
+
+        final Exception failure = error;
+        display.asyncExec(new Runnable() {
+          public void run() {
+            try {
+              if (failure != null) {
+                throw failure;
+              }
+              callback.modelReady(model);
+            } catch (ModelerException e) {
+              showFriendlyModelerException(e);
+            } catch (Exception e) {
+              logger.error("Error generating model", e);
+              new ErrorDialog(((Spoon) SpoonFactory.getInstance()).getShell(), "Error", "Error generating model", e);
+            }
+          }
+        });
+      }
+
+      @Override
+      public void cancel() {
+        // the database call can't be stopped, its result is dropped
+        canceled = true;
+        Future<ModelerWorkspace> running = generation;
+        if (running != null) {
+          running.cancel(true);
+        }
+      }
+    });
+    box.start();
   }
 
 
   public void createModelerTab() throws ModelerException {
-    ModelerWorkspace model = createModelerWorkspace();
-    
-    populateModel(model);
-    
-    AgileBiModelerPerspective.getInstance().createTabForModel(model, MODELER_NAME);
-    
+    try {
+      populateModelInBackground(new ModelReadyCallback() {
+        public void modelReady(ModelerWorkspace model) throws Exception {
+          AgileBiModelerPerspective.getInstance().createTabForModel(model, MODELER_NAME);
+        }
+      });
+    } catch (XulException e) {
+      throw new ModelerException(e);
+    }
   }
   
   public void createModelerTabFromSource( IModelerSource source ) throws ModelerException {
@@ -416,8 +614,12 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     }
 
     try{
-      ModelerHelper.getInstance().createModelerTab();
-      SpoonPerspectiveManager.getInstance().activatePerspective(AgileBiModelerPerspective.class);
+      populateModelInBackground(new ModelReadyCallback() {
+        public void modelReady(ModelerWorkspace model) throws Exception {
+          AgileBiModelerPerspective.getInstance().createTabForModel(model, MODELER_NAME);
+          SpoonPerspectiveManager.getInstance().activatePerspective(AgileBiModelerPerspective.class);
+        }
+      });
     } catch (ModelerException e) {
       showFriendlyModelerException(e);
     } catch(Exception e){
@@ -434,7 +636,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
       DatabaseExplorerDialog std = new DatabaseExplorerDialog(spoon.getShell(), SWT.NONE, databaseMeta, new ArrayList<DatabaseMeta>());
       if (std.open()) {
           
-        TableModelerSource source = new TableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName() == null ? "" : std.getSchemaName() ); //$NON-NLS-1$
+        TableModelerSource source = new CachedTableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName() == null ? "" : std.getSchemaName() ); //$NON-NLS-1$
         if( source.getSchemaName() == null ) {
           source.setSchemaName(""); //$NON-NLS-1$
         }
@@ -457,9 +659,11 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     }
 
     try{
-      ModelerWorkspace model = createModelerWorkspace();
-      populateModel(model);
-      quickVisualize( model );
+      populateModelInBackground(new ModelReadyCallback() {
+        public void modelReady(ModelerWorkspace model) throws Exception {
+          quickVisualize( model );
+        }
+      });
     } catch (ModelerException e) {
       showFriendlyModelerException(e);
     } catch(Exception e){
@@ -485,6 +689,13 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     }
 
     XulWaitBox box;
+    final KettleModelerSource source;
+    try {
+      source = createSourceForActiveEntry();
+    } catch (ModelerException e) {
+      showFriendlyModelerException(e);
+      return;
+    }
     try {
       box = (XulWaitBox) document.createElement("waitbox");
       box.setIndeterminate(true);
@@ -502,7 +713,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
           
           try {
             ModelerWorkspace model = createModelerWorkspace();
-            populateModel(model);
+            populateModel(model, source);
 
             ObjectUtilities.setClassLoader(getClass().getClassLoader());
             ObjectUtilities.setClassLoaderSource(ObjectUtilities.CLASS_CONTEXT);
@@ -577,22 +788,23 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
 	  }
 
   public String createTemporaryModel(ModelerWorkspace model, boolean saveName, boolean autoModel) throws ModelerException {
+    Span span = Span.start("modeler.createTemporaryModel"); //$NON-NLS-1$
+    try {
+      return doCreateTemporaryModel(model, saveName, autoModel);
+    } finally {
+      span.end();
+    }
+  }
+
+  private String doCreateTemporaryModel(ModelerWorkspace model, boolean saveName, boolean autoModel) throws ModelerException {
     //give it a temporary name
-    File modelsDir = new File(TEMP_MODELS_FOLDER); //$NON-NLS-1$
-    modelsDir.mkdirs();
-    int idx = 1;
-    boolean looking = true;
-    File modelFile;
-    String fileName = ""; //$NON-NLS-1$
-    String modelName = ""; //$NON-NLS-1$
-    while( looking ) {
-      modelName = "Model "+idx; //$NON-NLS-1$
-      fileName = TEMP_MODELS_FOLDER + "/" + modelName+".xmi"; //$NON-NLS-1$ //$NON-NLS-2$
-      modelFile = new File(fileName);
-      if( !modelFile.exists() ) {
-        looking = false;
-      }
-      idx++;
+    TemporaryModelStore store = TemporaryModelStore.getInstance();
+    String modelName = store.nextModelName();
+    String fileName;
+    try {
+      fileName = store.getFile(modelName).getPath();
+    } catch (IOException e) {
+      throw new ModelerException(e);
     }
     if(saveName){
       model.setFileName(fileName);
@@ -617,22 +829,48 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
     return fileName;
   }
   
+  /**
+   * Copies a model in memory. The copy is temporary and has no file until
+   * {@link #getModelFile(ModelerWorkspace)} asks for one.
+   *
+   * @param model Model to copy
+   * @return the copy
+   * @throws ModelerException error copying the model
+   */
   public ModelerWorkspace clone(ModelerWorkspace model) throws ModelerException{
-    String fileName = createTemporaryModel(model, false, false);
-    
+    model.getWorkspaceHelper().populateDomain(model);
+
     ModelerWorkspace newModel = createModelerWorkspace();
-    
-    newModel.setTemporary(true);
-    newModel.setDirty(false);
-    String xml;
     try {
-      xml = new String(IOUtils.toByteArray(new FileInputStream(new File(fileName))), "UTF-8");
-      ModelerWorkspaceUtil.loadWorkspace(fileName, xml, newModel);
+      String xml = new XmiParser().generateXmi(model.getDomain());
+      ModelerWorkspaceUtil.loadWorkspace(null, xml, newModel);
+    } catch (ModelerException e) {
+      throw e;
     } catch (Exception e) {
       throw new ModelerException(e);
-    } //$NON-NLS-1$
+    }
+    newModel.setTemporary(true);
+    newModel.setDirty(false);
     return newModel;
   }
+
+  /**
+   * Get the file of a model, writing a temporary model that has none to a temporary file
+   * first.
+   *
+   * @param model Model that has to be read from a file
+   * @return the model's file, null if the model isn't temporary and wasn't saved yet
+   * @throws ModelerException error writing the temporary model
+   */
+  public String getModelFile(ModelerWorkspace model) throws ModelerException {
+    String fileName = model.getFileName();
+    if (!model.isTemporary() || (fileName != null && new File(fileName).exists())) {
+      return fileName;
+    }
+    fileName = createTemporaryModel(model, true, false);
+    model.setDirty(false);
+    return fileName;
+  }
   
   public void databaseModelItem() {
     Spoon spoon = ((Spoon)SpoonFactory.getInstance());
@@ -642,7 +880,7 @@ public class ModelerHelper extends AbstractXulEventHandler implements ISpoonMenu
       DatabaseExplorerDialog std = new DatabaseExplorerDialog(spoon.getShell(), SWT.NONE, databaseMeta, new ArrayList<DatabaseMeta>());
       if (std.open()) {
           
-        TableModelerSource source = new TableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName());
+        TableModelerSource source = new CachedTableModelerSource( databaseMeta, std.getTableName(), std.getSchemaName());
         try{
           ModelerWorkspace model = createModelerWorkspace();
           ModelerWorkspaceUtil.populateModelFromSource(model, source);
@@ -0,0 +1,201 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dom4j.Document;
+import org.dom4j.Node;
+import org.dom4j.io.SAXReader;
+import org.pentaho.agilebi.spoon.visualizations.analyzer.AnalyzerVisualization;
+import org.pentaho.agilebi.vfs.MondrianSchemaCache;
+import org.pentaho.di.core.LastUsedFile;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.platform.api.data.IDBDatasourceService;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+
+/**
+ * Warms up the embedded platform after it started so the first report doesn't pay for cold
+ * classes and schemas. Requests a few key pages, then generates the Mondrian schemas of the
+ * models used most recently. Only if asked to, see {@link #setOpenConnections(boolean)}, it
+ * also opens their connection pools and the Analyzer editor on the most recent reports. Runs
+ * at the lowest priority, failures are only logged.
+ */
+public class PlatformWarmUp implements Runnable {
+
+  public static final int MAX_MODELS = 3;
+
+  private static final String[] WARM_UP_PATHS = { "/pentaho/webcontext.js", //$NON-NLS-1$
+      "/pentaho/js/browserLocale.js" }; //$NON-NLS-1$
+
+  private static final String EDITOR_PATH = "/pentaho/api/repos/xanalyzer/editor?catalog="; //$NON-NLS-1$
+
+  private static final int TIMEOUT_MILLIS = 60000;
+
+  private static LogChannelInterface log = new LogChannel(PlatformWarmUp.class.getSimpleName());
+
+  private final int port;
+
+  private final List<LastUsedFile> lastUsedFiles;
+
+  private final Collection<String> modelFiles;
+
+  private boolean openConnections;
+
+  public PlatformWarmUp(int port, List<LastUsedFile> lastUsedFiles) {
+    this.port = port;
+    this.lastUsedFiles = new ArrayList<LastUsedFile>(lastUsedFiles);
+    this.modelFiles = null;
+  }
+
+  /**
+   * Warms up the given models instead of the recently used ones.
+   */
+  public PlatformWarmUp(int port, Collection<String> modelFiles) {
+    this.port = port;
+    this.lastUsedFiles = null;
+    this.modelFiles = new ArrayList<String>(modelFiles);
+  }
+
+  /**
+   * Also opens the connection pools of the models, off by default so nothing connects to a
+   * database before a report needs it.
+   */
+  public void setOpenConnections(boolean openConnections) {
+    this.openConnections = openConnections;
+  }
+
+  /**
+   * Runs the warm up on a daemon thread of the lowest priority.
+   */
+  public void start() {
+    Thread thread = new Thread(this, "agilebi-warmup"); //$NON-NLS-1$
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  public void run() {
+    long start = System.currentTimeMillis();
+    for (String path : WARM_UP_PATHS) {
+      request(path);
+    }
+
+    // model file -> cube of a report on it, null if only the model was opened
+    Map<String, String> models = new LinkedHashMap<String, String>();
+    if (modelFiles != null) {
+      for (String modelFile : modelFiles) {
+        models.put(modelFile, null);
+      }
+    } else {
+      models = getRecentModels();
+    }
+    for (Map.Entry<String, String> model : models.entrySet()) {
+      loadModel(model.getKey());
+    }
+    for (Map.Entry<String, String> model : models.entrySet()) {
+      // the editor may query the model's database
+      if (openConnections && model.getValue() != null) {
+        request(EDITOR_PATH + AnalyzerVisualization.encodeString(model.getKey()) + "&cube=" //$NON-NLS-1$
+            + AnalyzerVisualization.encodeString(model.getValue()));
+      }
+    }
+    log.logBasic("Warmed up " + models.size() + " models in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+  }
+
+  private Map<String, String> getRecentModels() {
+    Map<String, String> models = new LinkedHashMap<String, String>();
+    for (LastUsedFile lastUsedFile : lastUsedFiles) {
+      if (models.size() >= MAX_MODELS) {
+        break;
+      }
+      String type = lastUsedFile.getFileType();
+      String filename = lastUsedFile.getFilename();
+      if (filename == null || !new File(filename).exists()) {
+        continue;
+      }
+      // Analyzer reports are saved as "Model" files too
+      String extension = filename.substring(filename.lastIndexOf('.') + 1).toLowerCase();
+      if ("Model".equals(type) && "xmi".equals(extension)) { //$NON-NLS-1$ //$NON-NLS-2$
+        if (!models.containsKey(filename)) {
+          models.put(filename, null);
+        }
+      } else if ("Analyzer".equals(type) || "xanalyzer".equals(extension)) { //$NON-NLS-1$ //$NON-NLS-2$
+        try {
+          Document doc = new SAXReader().read(new File(filename));
+          Node catalog = doc.selectSingleNode("//@catalog"); //$NON-NLS-1$
+          Node cube = doc.selectSingleNode("//@cube"); //$NON-NLS-1$
+          if (catalog != null && cube != null && new File(catalog.getText()).exists()) {
+            models.put(catalog.getText(), cube.getText());
+          }
+        } catch (Exception e) {
+          log.logDebug("Could not read report " + filename + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+      }
+    }
+    return models;
+  }
+
+  private void loadModel(String xmiPath) {
+    try {
+      MondrianSchemaCache.getInstance().getSchema(new File(xmiPath));
+      if (openConnections) {
+        IDBDatasourceService datasourceService = PentahoSystem.get(IDBDatasourceService.class, null);
+        if (datasourceService != null) {
+          datasourceService.getDataSource(xmiPath);
+        }
+      }
+    } catch (Exception e) {
+      log.logDebug("Could not warm up model " + xmiPath + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  private void request(String path) {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) new URL("http", "localhost", port, path).openConnection(); //$NON-NLS-1$ //$NON-NLS-2$
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+      if (in != null) {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+          // discard
+        }
+        in.close();
+      }
+    } catch (IOException e) {
+      log.logDebug("Warm up request " + path + " failed: " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+}
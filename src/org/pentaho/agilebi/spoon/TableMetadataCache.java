@@ -0,0 +1,361 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.agilebi.modeler.util.ModelerSourceUtil;
+import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.vfs.MondrianSchemaCache;
+import org.pentaho.di.core.Const;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.registry.util.RegistryUtil;
+import org.pentaho.metadata.util.XmiParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the domains generated from a table's JDBC metadata, so modeling or visualizing the
+ * same table again doesn't read the database dictionary again. Entries are keyed by the
+ * connection's definition, schema and table, and expire after {@link #TTL_PROPERTY} seconds.
+ * At most {@link #MAX_ENTRIES_PROPERTY} tables are kept in memory, the least recently used
+ * are dropped first.
+ * Every caller gets its own copy of the domain, the cache is shared by all modeler tabs.
+ * Entries can also be kept under the Kettle directory to survive a restart, see
+ * {@link #PERSIST_PROPERTY}.
+ */
+public class TableMetadataCache {
+
+  /**
+   * System property (can be set in kettle.properties) with the seconds table metadata is
+   * cached, 0 turns the cache off
+   */
+  public static final String TTL_PROPERTY = "AGILEBI_METADATA_CACHE_SECONDS"; //$NON-NLS-1$
+
+  public static final long DEFAULT_TTL_SECONDS = 3600;
+
+  /**
+   * System property (can be set in kettle.properties) with the number of tables kept in memory
+   */
+  public static final String MAX_ENTRIES_PROPERTY = "AGILEBI_METADATA_CACHE_ENTRIES"; //$NON-NLS-1$
+
+  public static final int DEFAULT_MAX_ENTRIES = 100;
+
+  /**
+   * System property (can be set in kettle.properties), Y keeps the cached metadata under the
+   * Kettle directory
+   */
+  public static final String PERSIST_PROPERTY = "AGILEBI_METADATA_CACHE_PERSIST"; //$NON-NLS-1$
+
+  public static final String CACHE_FOLDER = "agilebi-metadata-cache"; //$NON-NLS-1$
+
+  private static final String EXTENSION = ".xmi"; //$NON-NLS-1$
+
+  private static Logger logger = LoggerFactory.getLogger(TableMetadataCache.class);
+
+  private static RegistryUtil UTIL = new RegistryUtil();
+
+  private static TableMetadataCache instance;
+
+  private final long ttlMillis;
+
+  private final File directory;
+
+  private final Map<String, CachedDomain> domains;
+
+  private final ConcurrentMap<String, FutureTask<CachedDomain>> loading = new ConcurrentHashMap<String, FutureTask<CachedDomain>>();
+
+  /**
+   * @param directory
+   *          where to keep the cached metadata, null to keep it in memory only
+   */
+  public TableMetadataCache(long ttlMillis, File directory) {
+    this(ttlMillis, DEFAULT_MAX_ENTRIES, directory);
+  }
+
+  /**
+   * @param maxEntries
+   *          the number of tables kept in memory
+   * @param directory
+   *          where to keep the cached metadata, null to keep it in memory only
+   */
+  public TableMetadataCache(long ttlMillis, final int maxEntries, File directory) {
+    this.ttlMillis = ttlMillis;
+    this.directory = directory;
+    this.domains = Collections.synchronizedMap(new LinkedHashMap<String, CachedDomain>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedDomain> eldest) {
+        return size() > maxEntries;
+      }
+    });
+  }
+
+  public static synchronized TableMetadataCache getInstance() {
+    if (instance == null) {
+      long ttl = Const.toLong(System.getProperty(TTL_PROPERTY), DEFAULT_TTL_SECONDS);
+      int maxEntries = Const.toInt(System.getProperty(MAX_ENTRIES_PROPERTY), DEFAULT_MAX_ENTRIES);
+      File directory = null;
+      if ("Y".equalsIgnoreCase(System.getProperty(PERSIST_PROPERTY))) { //$NON-NLS-1$
+        directory = new File(Const.getKettleDirectory(), CACHE_FOLDER);
+      }
+      instance = new TableMetadataCache(ttl * 1000, maxEntries, directory);
+    }
+    return instance;
+  }
+
+  /**
+   * Returns a copy of the domain for the source's table, generated from the JDBC metadata if
+   * it isn't cached or expired.
+   */
+  public Domain getDomain(final TableModelerSource source) throws ModelerException {
+    if (ttlMillis <= 0) {
+      return generateDomain(source);
+    }
+
+    final String key = getKey(source);
+    CachedDomain cached = get(key);
+    if (cached == null) {
+      FutureTask<CachedDomain> task = new FutureTask<CachedDomain>(new Callable<CachedDomain>() {
+        public CachedDomain call() throws Exception {
+          return load(key, source);
+        }
+      });
+      FutureTask<CachedDomain> running = loading.putIfAbsent(key, task);
+      if (running == null) {
+        running = task;
+        try {
+          task.run();
+        } finally {
+          loading.remove(key, task);
+        }
+      }
+      try {
+        cached = running.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ModelerException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof ModelerException) {
+          throw (ModelerException) e.getCause();
+        }
+        throw new ModelerException(e.getCause());
+      }
+    }
+
+    try {
+      return new XmiParser().parseXmi(new ByteArrayInputStream(cached.xmi));
+    } catch (Exception e) {
+      throw new ModelerException(e);
+    }
+  }
+
+  /**
+   * Drops the cached metadata of the source's table, the next request reads it again.
+   */
+  public void refresh(TableModelerSource source) {
+    invalidate(getTableId(source));
+  }
+
+  /**
+   * Drops the cached metadata of a table on any connection definition.
+   * 
+   * @param tableId
+   *          the table's lineage id, see {@link KettleModelerSource#registerLineageMetadata}
+   */
+  public void invalidate(String tableId) {
+    synchronized (domains) {
+      for (Iterator<CachedDomain> i = domains.values().iterator(); i.hasNext();) {
+        if (i.next().tableId.equals(tableId)) {
+          i.remove();
+        }
+      }
+    }
+    if (directory != null) {
+      File[] files = directory.listFiles();
+      String prefix = sha1(tableId);
+      if (files != null) {
+        for (File file : files) {
+          if (file.getName().startsWith(prefix)) {
+            file.delete();
+          }
+        }
+      }
+    }
+  }
+
+  public void clear() {
+    domains.clear();
+    if (directory != null) {
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (file.getName().endsWith(EXTENSION)) {
+            file.delete();
+          }
+        }
+      }
+    }
+  }
+
+  private CachedDomain get(String key) {
+    CachedDomain cached = domains.get(key);
+    if (cached != null && !cached.isExpired()) {
+      return cached;
+    }
+    if (cached != null) {
+      domains.remove(key);
+    }
+    return null;
+  }
+
+  private CachedDomain load(String key, TableModelerSource source) throws Exception {
+    CachedDomain cached = get(key);
+    if (cached != null) {
+      // loaded while we were waiting to get in
+      return cached;
+    }
+
+    String tableId = getTableId(source);
+    File file = directory == null ? null : new File(directory, key + EXTENSION);
+    if (file != null && file.exists() && System.currentTimeMillis() - file.lastModified() < ttlMillis) {
+      try {
+        cached = new CachedDomain(tableId, readFile(file), file.lastModified());
+      } catch (IOException e) {
+        logger.warn("Could not read cached metadata " + file, e); //$NON-NLS-1$
+      }
+    }
+
+    if (cached == null) {
+      Domain domain = generateDomain(source);
+      cached = new CachedDomain(tableId, new XmiParser().generateXmi(domain).getBytes("UTF-8"), System.currentTimeMillis()); //$NON-NLS-1$
+      if (file != null) {
+        writeFile(file, cached.xmi);
+      }
+    }
+    domains.put(key, cached);
+    return cached;
+  }
+
+  /**
+   * Reads the table's metadata from the database.
+   */
+  protected Domain generateDomain(TableModelerSource source) throws ModelerException {
+    return ModelerSourceUtil.generateDomain(source.getDatabaseMeta(), source.getSchemaName(), source.getTableName());
+  }
+
+  /**
+   * @return the number of tables cached in memory
+   */
+  int size() {
+    return domains.size();
+  }
+
+  private void writeFile(File file, byte[] xmi) {
+    File tmp = null;
+    try {
+      directory.mkdirs();
+      tmp = File.createTempFile("metadata", ".tmp", directory); //$NON-NLS-1$ //$NON-NLS-2$
+      FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        fos.write(xmi);
+      } finally {
+        fos.close();
+      }
+      // windows doesn't rename over an existing file
+      if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+        logger.warn("Could not store cached metadata " + file); //$NON-NLS-1$
+      }
+    } catch (IOException e) {
+      logger.warn("Could not store cached metadata " + file, e); //$NON-NLS-1$
+    } finally {
+      if (tmp != null && tmp.exists()) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      return IOUtils.toByteArray(fis);
+    } finally {
+      fis.close();
+    }
+  }
+
+  private static String getTableId(TableModelerSource source) {
+    return UTIL.generateCompositeId(source.getDatabaseName(), source.getSchemaName(), source.getTableName());
+  }
+
+  /**
+   * The table's id followed by a hash of the connection's definition, so a changed
+   * connection misses. Also used as the file name.
+   */
+  private static String getKey(TableModelerSource source) throws ModelerException {
+    try {
+      return sha1(getTableId(source)) + '-' + sha1(source.getDatabaseMeta().getXML());
+    } catch (Exception e) {
+      throw new ModelerException(e);
+    }
+  }
+
+  private static String sha1(String value) {
+    try {
+      return MondrianSchemaCache.sha1(value.getBytes("UTF-8")); //$NON-NLS-1$
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private class CachedDomain {
+
+    private final String tableId;
+
+    private final byte[] xmi;
+
+    private final long loaded;
+
+    CachedDomain(String tableId, byte[] xmi, long loaded) {
+      this.tableId = tableId;
+      this.xmi = xmi;
+      this.loaded = loaded;
+    }
+
+    boolean isExpired() {
+      return System.currentTimeMillis() - loaded >= ttlMillis;
+    }
+  }
+
+}
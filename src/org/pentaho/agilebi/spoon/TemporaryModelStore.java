@@ -0,0 +1,241 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the files of temporary models. Every Spoon process writes its temporary models to
+ * a directory of its own, named from a counter so no name has to be probed, and holds a lock
+ * on it while it runs. Directories of processes that are gone are removed on startup, the own
+ * directory on exit. A file is deleted as soon as the last tab that {@link #acquire}d it
+ * {@link #release}s it.
+ * 
+ * The models are written below {@link #DIRECTORY_PROPERTY}, which can point to a memory
+ * backed file system such as /dev/shm, or to the models folder of the working directory.
+ */
+public class TemporaryModelStore {
+
+  /**
+   * System property (can be set in kettle.properties) with the directory temporary models are
+   * written to
+   */
+  public static final String DIRECTORY_PROPERTY = "AGILEBI_TEMP_MODELS_DIR"; //$NON-NLS-1$
+
+  public static final String DEFAULT_DIRECTORY = "models"; //$NON-NLS-1$
+
+  private static final String SESSION_PREFIX = "session-"; //$NON-NLS-1$
+
+  private static final String LOCK_FILE = ".lock"; //$NON-NLS-1$
+
+  private static final String EXTENSION = ".xmi"; //$NON-NLS-1$
+
+  // directories that don't have their lock yet may just have been created
+  private static final long LOCK_GRACE_MILLIS = 60000L;
+
+  // files the previous versions wrote directly into the models folder
+  private static final Pattern LEGACY_MODEL = Pattern.compile("Model \\d+\\.xmi"); //$NON-NLS-1$
+
+  private static Logger logger = LoggerFactory.getLogger(TemporaryModelStore.class);
+
+  private static TemporaryModelStore instance;
+
+  private final File baseDirectory;
+
+  private final AtomicInteger counter = new AtomicInteger();
+
+  private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+  private File directory;
+
+  private RandomAccessFile lockFile;
+
+  private FileLock lock;
+
+  public TemporaryModelStore(File baseDirectory) {
+    this.baseDirectory = baseDirectory;
+  }
+
+  public static synchronized TemporaryModelStore getInstance() {
+    if (instance == null) {
+      String directory = System.getProperty(DIRECTORY_PROPERTY);
+      instance = new TemporaryModelStore(new File(directory == null || directory.length() == 0 ? DEFAULT_DIRECTORY
+          : directory));
+    }
+    return instance;
+  }
+
+  /**
+   * @return a model name that is unique within this process
+   */
+  public String nextModelName() {
+    return "Model " + counter.incrementAndGet(); //$NON-NLS-1$
+  }
+
+  /**
+   * @return the file for the temporary model of the given name
+   */
+  public synchronized File getFile(String modelName) throws IOException {
+    return new File(getDirectory(), modelName + EXTENSION);
+  }
+
+  /**
+   * Counts a reference to a temporary model file, other files are ignored.
+   */
+  public synchronized void acquire(String fileName) {
+    String key = getKey(fileName);
+    if (key != null) {
+      Integer count = references.get(key);
+      references.put(key, count == null ? 1 : count + 1);
+    }
+  }
+
+  /**
+   * Drops a reference to a temporary model file and deletes the file with the last one.
+   */
+  public synchronized void release(String fileName) {
+    String key = getKey(fileName);
+    Integer count = key == null ? null : references.get(key);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      references.put(key, count - 1);
+    } else {
+      references.remove(key);
+      new File(key).delete();
+    }
+  }
+
+  /**
+   * Removes the directories of processes that are gone, and the temporary models of older
+   * versions.
+   */
+  public void removeStaleSessions() {
+    File[] files = baseDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isFile() && LEGACY_MODEL.matcher(file.getName()).matches()) {
+        file.delete();
+      } else if (file.isDirectory() && file.getName().startsWith(SESSION_PREFIX) && !file.equals(directory)
+          && isStale(file)) {
+        try {
+          FileUtils.deleteDirectory(file);
+        } catch (IOException e) {
+          logger.warn("Could not remove temporary models " + file, e); //$NON-NLS-1$
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the temporary models of this process.
+   */
+  public synchronized void shutdown() {
+    if (directory == null) {
+      return;
+    }
+    try {
+      lock.release();
+      lockFile.close();
+    } catch (IOException e) {
+      // the directory is removed anyway
+    }
+    try {
+      FileUtils.deleteDirectory(directory);
+    } catch (IOException e) {
+      logger.warn("Could not remove temporary models " + directory, e); //$NON-NLS-1$
+    }
+    directory = null;
+    references.clear();
+  }
+
+  private File getDirectory() throws IOException {
+    if (directory != null) {
+      return directory;
+    }
+    baseDirectory.mkdirs();
+    File dir = null;
+    for (int attempt = 0; dir == null; attempt++) {
+      File candidate = new File(baseDirectory, SESSION_PREFIX + Long.toString(System.currentTimeMillis(), 36)
+          + Integer.toString((int) (Math.random() * 1296), 36));
+      if (candidate.mkdir()) {
+        dir = candidate;
+      } else if (attempt >= 10) {
+        throw new IOException("Could not create " + candidate); //$NON-NLS-1$
+      }
+    }
+    lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw"); //$NON-NLS-1$
+    lock = lockFile.getChannel().lock();
+    directory = dir;
+    return directory;
+  }
+
+  private boolean isStale(File dir) {
+    File file = new File(dir, LOCK_FILE);
+    if (!file.exists()) {
+      return System.currentTimeMillis() - dir.lastModified() > LOCK_GRACE_MILLIS;
+    }
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+      try {
+        FileLock other = raf.getChannel().tryLock();
+        if (other == null) {
+          return false;
+        }
+        other.release();
+        return true;
+      } finally {
+        raf.close();
+      }
+    } catch (OverlappingFileLockException e) {
+      return false;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the absolute path of a file in this process' directory, null for other files
+   */
+  private String getKey(String fileName) {
+    if (fileName == null || directory == null) {
+      return null;
+    }
+    File file = new File(fileName).getAbsoluteFile();
+    if (!directory.getAbsoluteFile().equals(file.getParentFile())) {
+      return null;
+    }
+    return file.getPath();
+  }
+
+}
@@ -31,8 +31,11 @@ import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
 import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.agilebi.spoon.CachedTableModelerSource;
+import org.pentaho.agilebi.spoon.ModelerHelper;
 import org.pentaho.agilebi.spoon.OutputStepModelerSource;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
+import org.pentaho.agilebi.spoon.TableMetadataCache;
 import org.pentaho.agilebi.spoon.publish.PublisherHelper;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
@@ -224,7 +227,9 @@ public class SpoonModelerController extends ModelerController {
           }
         }
         if(refresh) {
-          TableModelerSource theSource = new TableModelerSource(theDBMeta, theTableAndSchema[1], theTableAndSchema[0]);
+          TableModelerSource theSource = new CachedTableModelerSource(theDBMeta, theTableAndSchema[1], theTableAndSchema[0]);
+          // the table may have changed since it was cached
+          TableMetadataCache.getInstance().refresh(theSource);
           ModelerWorkspaceUtil.populateModelFromSource(this.workspace, theSource);
           workspace.setSourceName(theTableAndSchema[1]);
           datasourceButtonBinding.fireSourceChanged();
@@ -329,6 +334,7 @@ public class SpoonModelerController extends ModelerController {
     workspace.setFileName(fileName);
     workspace.setDirty(false);
     workspace.setTemporary(false);
+    ModelerHelper.registerModelLineage(workspace, fileName);
     return true;
   }
 
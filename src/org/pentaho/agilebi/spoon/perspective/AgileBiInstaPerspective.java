@@ -76,12 +76,13 @@ public class AgileBiInstaPerspective extends AbstractPerspective implements Spoo
     // NO longer specify the theme on the URL, take the server default (specified in pentaho.xml).
     final String locationTemplate = "http://localhost:${port}/pentaho/api/repos/instaview/resources/web/main.html?embedded=true"; //$NON-NLS-1$
 
+    final int port = AgileBILifecycleListener.getConsolePort();
     display.asyncExec(new Runnable() {
       
       @Override
       public void run() {
         browser
-            .setSrc(replaceField(locationTemplate, "port", Integer.toString(AgileBILifecycleListener.consolePort), false)); //$NON-NLS-1$ //$NON-NLS-2$
+            .setSrc(replaceField(locationTemplate, "port", Integer.toString(port), false)); //$NON-NLS-1$ //$NON-NLS-2$
         perspectiveController.setBrowser(browser);
       }
     });
@@ -233,6 +234,9 @@ public class AgileBiInstaPerspective extends AbstractPerspective implements Spoo
 
   @Override
   public void onActivation() {
+    // the Instaview page is loaded once a lazily started server is up
+    AgileBILifecycleListener.startServer();
+
     // On perspective activation close all tabs from the DI and Modeler perspectives.
     // If there are unsaved changes save them.
     Spoon spoonInstance = Spoon.getInstance();
@@ -35,10 +35,12 @@ import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ModelerWorkspaceUtil;
 import org.pentaho.agilebi.spoon.ModelerEngineMeta;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
+import org.pentaho.agilebi.spoon.TemporaryModelStore;
 import org.pentaho.agilebi.spoon.XulUI;
 import org.pentaho.agilebi.spoon.visualizations.SaveAwareMeta;
 import org.pentaho.agilebi.spoon.visualizations.analyzer.AnalyzerVisualizationController;
 import org.pentaho.agilebi.spoon.visualizations.analyzer.AnalyzerVisualizationMeta;
+import org.pentaho.agilebi.spoon.visualizations.analyzer.MondrianCatalogCache;
 import org.pentaho.di.core.EngineMetaInterface;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.gui.SpoonFactory;
@@ -209,17 +211,20 @@ public class AgileBiVisualizationPerspective extends AbstractPerspective {
   }
   
   public boolean onTabClose(final int pos) throws XulException{
-	  AnalyzerVisualizationController controller = (AnalyzerVisualizationController) ((AnalyzerVisualizationMeta)selectedMeta).getController();
-	  String contentId = PERSPECTIVE_ID+"\t"+controller.getVisFileLocation(); //$NON-NLS-1$
+    // the closed tab isn't necessarily the selected one
+    EngineMetaInterface meta = super.metas.get(tabs.getTabByIndex(pos));
+    AnalyzerVisualizationController vizController = meta instanceof AnalyzerVisualizationMeta
+        ? (AnalyzerVisualizationController) ((AnalyzerVisualizationMeta) meta).getController() : null;
+	  String contentId = PERSPECTIVE_ID+"\t"+(vizController == null ? null : vizController.getVisFileLocation()); //$NON-NLS-1$
 	  
 // TODO - JD - enable this in Spoon
 /*
 	  String caller = Spoon.getInstance().getCaller(contentId);
 	  if( caller == null ) {
-		  contentId = PERSPECTIVE_ID+"\t"+controller.toString(); //$NON-NLS-1$
+		  contentId = PERSPECTIVE_ID+"\t"+vizController.toString(); //$NON-NLS-1$
 	  }
 */	  
-    if(((SaveAwareMeta) this.getActiveMeta()).isDirty()){
+    if(meta instanceof SaveAwareMeta && ((SaveAwareMeta) meta).isDirty()){
       XulConfirmBox confirm = (XulConfirmBox) document.createElement("confirmbox"); //$NON-NLS-1$
       confirm.setTitle(BaseMessages.getString(this.getClass(), "Modeler.Perspective.unsavedChanges")); //$NON-NLS-1$
       confirm.setMessage(BaseMessages.getString(this.getClass(), "Visualization.Perspective.unsavedChangesMessage")); //$NON-NLS-1$
@@ -228,6 +233,7 @@ public class AgileBiVisualizationPerspective extends AbstractPerspective {
       confirm.addDialogCallback(callback);
       confirm.open();
       if(callback.closeIt){
+          tabClosed(vizController);
           switchToCaller(contentId);
         return true;
       } else {
@@ -235,9 +241,21 @@ public class AgileBiVisualizationPerspective extends AbstractPerspective {
       }
       
     }
+    tabClosed(vizController);
     switchToCaller(contentId);
     return true;
   }
+
+  private void tabClosed(AnalyzerVisualizationController controller) {
+    if (controller == null) {
+      return;
+    }
+    if (controller.getFileLocation() != null) {
+      MondrianCatalogCache.getInstance().close(controller.getFileLocation());
+    }
+    // the file the tab acquired, the model may have been saved elsewhere since
+    TemporaryModelStore.getInstance().release(controller.getFileLocation());
+  }
   
   
 
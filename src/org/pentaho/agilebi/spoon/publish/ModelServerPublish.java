@@ -17,7 +17,8 @@
 
 package org.pentaho.agilebi.spoon.publish;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -32,12 +33,13 @@ import javax.ws.rs.core.MediaType;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
-import org.dom4j.DocumentHelper;
 import org.jfree.util.Log;
 import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerPerspective;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
+import org.pentaho.agilebi.util.Span;
+import org.pentaho.agilebi.vfs.MondrianSchemaExport;
 import org.pentaho.database.IDatabaseDialect;
 import org.pentaho.database.model.DatabaseAccessType;
 import org.pentaho.database.model.DatabaseConnection;
@@ -52,7 +54,6 @@ import org.pentaho.di.core.gui.SpoonFactory;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.metadata.model.LogicalModel;
 import org.pentaho.metadata.model.concept.types.LocalizedString;
-import org.pentaho.metadata.util.MondrianModelExporter;
 import org.pentaho.platform.api.engine.PentahoAccessControlException;
 import org.pentaho.platform.api.repository2.unified.RepositoryFile;
 import org.pentaho.platform.dataaccess.datasource.wizard.service.ConnectionServiceException;
@@ -483,6 +484,18 @@ public class ModelServerPublish {
       boolean showFeedback, boolean isExistentDatasource,
       boolean publishFile,
       String publishModelFileName) throws Exception {
+    Span span = Span.start("publish.publishToServer"); //$NON-NLS-1$
+    try {
+      doPublishToServer(schemaName, jndiName, modelName, repositoryPath, selectedPath, publishDatasource,
+          showFeedback, isExistentDatasource, publishFile, publishModelFileName);
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doPublishToServer(String schemaName, String jndiName, String modelName, String repositoryPath,
+      String selectedPath, boolean publishDatasource, boolean showFeedback, boolean isExistentDatasource,
+      boolean publishFile, String publishModelFileName) throws Exception {
 
     String publishModelXmiFileName = publishModelFileName;
     if(publishFile){
@@ -762,30 +775,25 @@ public class ModelServerPublish {
 
     LogicalModel lModel = this.model.getLogicalModel(ModelerPerspective.ANALYSIS);
 
-    MondrianModelExporter exporter = new MondrianModelExporter(lModel, LocalizedString.DEFAULT_LOCALE);
-    String mondrianSchema = exporter.createMondrianModelXML();
-
-    org.dom4j.Document schemaDoc = DocumentHelper.parseText(mondrianSchema);
-    byte schemaBytes[] = schemaDoc.asXML().getBytes();
-
     if (!publishFile.exists()) {
       throw new ModelerException("Schema file does not exist"); //$NON-NLS-1$
     }
 
-    //local file
-    OutputStream out = new FileOutputStream(publishFile);
-    out.write(schemaBytes);
-    out.flush();
-    out.close();
-    //file to send to Jcr Repository
-    InputStream schema = new ByteArrayInputStream(schemaBytes);
+    //local file, the schema is written straight to it as UTF-8
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(publishFile));
+    try {
+      MondrianSchemaExport.write(lModel, LocalizedString.DEFAULT_LOCALE, out);
+    } finally {
+      out.close();
+    }
 
-    int result = publishMondrainSchema(schema, modelName, jndiName, overwriteInRepository);
+    //file to send to Jcr Repository
+    int result = publishMondrainSchema(publishFile, modelName, jndiName, overwriteInRepository);
     if (result != ModelServerPublish.PUBLISH_SUCCESS && result != ModelServerPublish.PUBLISH_CATALOG_EXISTS) {
       showFeedback(result);
       return result;
     }
-    result = handleModelOverwrite(jndiName, modelName, showFeedback, schemaDoc, result);
+    result = handleModelOverwrite(jndiName, modelName, showFeedback, publishFile, result);
 
     return result;
   }
@@ -804,20 +812,28 @@ public class ModelServerPublish {
   }
 
   private int handleModelOverwrite(String jndiName, String modelName, boolean showFeedback,
-      org.dom4j.Document schemaDoc, int result) throws Exception {
+      File schemaFile, int result) throws Exception {
     int response = result;
     if (showFeedback) {
       if (showFeedback(result)) {
-        //Handle Overwrite the byte stream has already be read - need to re-read
-        byte schemaBytes2[] = schemaDoc.asXML().getBytes();
-        InputStream schema2 = new ByteArrayInputStream(schemaBytes2);
-        response = publishMondrainSchema(schema2, modelName, jndiName, true);
+        //Handle Overwrite the stream has already been read - reopen the local file
+        response = publishMondrainSchema(schemaFile, modelName, jndiName, true);
         showFeedback(response);
       }
     }
     return response;
   }
 
+  private int publishMondrainSchema(File schemaFile, String catalogName, String datasourceInfo,
+      boolean overwriteInRepos) throws Exception {
+    InputStream schema = new BufferedInputStream(new FileInputStream(schemaFile));
+    try {
+      return publishMondrainSchema(schema, catalogName, datasourceInfo, overwriteInRepos);
+    } finally {
+      schema.close();
+    }
+  }
+
   /**
    * Sets the current BI server connection
    * @param biServerConnection
@@ -25,6 +25,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.pentaho.agilebi.util.Span;
 import org.springframework.beans.factory.xml.XmlBeanDefinitionStoreException;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
 
@@ -52,7 +53,12 @@ public class VisualizationManager {
 	public VisualizationManager(String aLocation) {
 		visualizations = new ArrayList<IVisualization>();
 		pluginsLocation = new File(aLocation);
-		loadVisualizations(pluginsLocation);
+		Span span = Span.start("visualizations.load"); //$NON-NLS-1$
+		try {
+		  loadVisualizations(pluginsLocation);
+		} finally {
+		  span.end();
+		}
 	}
 
   private void loadVisualizations(File aDir) {
@@ -38,6 +38,7 @@ import org.pentaho.agilebi.modeler.util.ModelerSourceFactory;
 import org.pentaho.agilebi.spoon.ModelerHelper;
 import org.pentaho.agilebi.spoon.PDIMessages;
 import org.pentaho.agilebi.spoon.SpoonModelerWorkspaceHelper;
+import org.pentaho.agilebi.spoon.TemporaryModelStore;
 import org.pentaho.agilebi.spoon.perspective.AbstractPerspective.XulTabAndPanel;
 import org.pentaho.agilebi.spoon.perspective.AgileBiVisualizationPerspective;
 import org.pentaho.agilebi.spoon.visualizations.AbstractVisualization;
@@ -57,8 +58,6 @@ import org.pentaho.metadata.registry.RegistryFactory;
 import org.pentaho.metadata.registry.Type;
 import org.pentaho.metadata.registry.Verb;
 import org.pentaho.metadata.util.XmiParser;
-import org.pentaho.platform.api.engine.ICacheManager;
-import org.pentaho.platform.engine.core.system.PentahoSystem;
 import org.pentaho.platform.util.RepositoryPathEncoder;
 import org.pentaho.ui.xul.XulDomContainer;
 import org.pentaho.ui.xul.swt.SwtXulLoader;
@@ -133,6 +132,8 @@ public class AnalyzerVisualization extends AbstractVisualization {
     return this.refreshModelJavascript;
   }
   
+  // the generators below wait for the server's port, on the UI thread call them from
+  // AgileBILifecycleListener.whenServerStarted
   public String generateSaveJavascript(String filename) {
     return generateSaveJavascript(filename, true, true,false);
   }
@@ -148,7 +149,7 @@ public class AnalyzerVisualization extends AbstractVisualization {
     str = replaceField(str, "filename",
       pathAndFilename[1].replace( "\\", "\\\\" ).replace( "'", "\\'" ), false);
 
-    str = replaceField(str, "port", ""+AgileBILifecycleListener.consolePort, encodePort); //$NON-NLS-1$
+    str = replaceField(str, "port", ""+AgileBILifecycleListener.getConsolePort(), encodePort); //$NON-NLS-1$
     return str;
   }
 
@@ -159,7 +160,7 @@ public class AnalyzerVisualization extends AbstractVisualization {
     Date now = new Date();
     String ts = Long.toString(now.getTime());
     str = replaceField(str, "timestamp", ts, false);
-	  str = replaceField(str, "port", ""+AgileBILifecycleListener.consolePort, false); //$NON-NLS-1$
+	  str = replaceField(str, "port", ""+AgileBILifecycleListener.getConsolePort(), false); //$NON-NLS-1$
 	  return str;
 	}
 
@@ -184,24 +185,23 @@ public class AnalyzerVisualization extends AbstractVisualization {
       fileLocation, true); //$NON-NLS-1$
 
     str = replaceField(str, "modelId", modelId, true); //$NON-NLS-1$
-	  str = replaceField(str, "port", ""+AgileBILifecycleListener.consolePort, false); //$NON-NLS-1$
+	  str = replaceField(str, "port", ""+AgileBILifecycleListener.getConsolePort(), false); //$NON-NLS-1$
 
-    // the rnd param is to make sure that the browser does not display a cached version of the requested report
-    long avoidBrowserCache = Calendar.getInstance().getTimeInMillis();
-    str += "&rnd=" + avoidBrowserCache;
+    // the editor is served no-cache (see StaticResourceCacheFilter), no random parameter
+    // is needed to keep the browser from showing a cached report
     return str;
 	}
 	
 	public String generateRefreshDataJavascript(String fileLocation, String modelId) { 
     String str = replaceField(refreshDataJavascript, "modelLocation", fileLocation, true); //$NON-NLS-1$
     str = replaceField(str, "modelId", modelId, true); //$NON-NLS-1$
-	  str = replaceField(str, "port", ""+AgileBILifecycleListener.consolePort, false); //$NON-NLS-1$
+	  str = replaceField(str, "port", ""+AgileBILifecycleListener.getConsolePort(), false); //$NON-NLS-1$
     return str;
 	}
 	
 	public String generateRefreshModelJavascript(String fileLocation, String modelId) {
 	  String str = refreshModelJavascript.replaceAll("tmpview", reportName); //$NON-NLS-1$
-	  str = replaceField(str, "port", ""+AgileBILifecycleListener.consolePort, false); //$NON-NLS-1$
+	  str = replaceField(str, "port", ""+AgileBILifecycleListener.getConsolePort(), false); //$NON-NLS-1$
     String folder = convertPathToRepoUrlFormat(new File("").getAbsolutePath());
     str = replaceField(str, "basedir", folder, true); //$NON-NLS-1$
 
@@ -217,21 +217,23 @@ public class AnalyzerVisualization extends AbstractVisualization {
 		Spoon spoon = ((Spoon)SpoonFactory.getInstance());
     try {
       if(tempModel){
-        ModelerHelper theHelper = ModelerHelper.getInstance();
-        model = theHelper.clone(model);
+        model = ModelerHelper.getInstance().clone(model);
       }
       
     	SwtXulLoader theXulLoader = new SwtXulLoader();
 
       theXulLoader.registerClassLoader(getClass().getClassLoader());
       
-      String theFileName = model.getFileName();
+      // the catalog is read from the model's file, Analyzer needs it written right away
+      String theFileName = ModelerHelper.getInstance().getModelFile(model);
       if(theFileName == null) {
         theFileName = "models/" + model.getModelName() + ".xmi";
       }
+      // kept until the tab closes
+      TemporaryModelStore.getInstance().acquire(theFileName);
 
-      // flush the cache before creating an analyzer visualization
-      flushAnalyzerCache();
+      // flush the catalog if its model changed since it was last loaded
+      MondrianCatalogCache.getInstance().open(theFileName);
       
       AnalyzerVisualizationController theController = new AnalyzerVisualizationController(spoon.tabfolder.getSwtTabset(), this, theFileName, model.getModelName(), null, null);
       theController.setModel(model);
@@ -252,15 +254,6 @@ public class AnalyzerVisualization extends AbstractVisualization {
     }
   }
 	
-	private void flushAnalyzerCache() {
-    ICacheManager cacheMgr = PentahoSystem.getCacheManager(null);
-    if (cacheMgr != null) {
-      cacheMgr.clearRegionCache("mondrian-catalog-cache"); //$NON-NLS-1$
-    }
-
-    
-	}
-
 	private void createTabForBrowser(Composite composite, AnalyzerVisualizationController controller, ModelerWorkspace model) throws KettleException {
 
     SpoonPerspectiveManager.getInstance().activatePerspective(AgileBiVisualizationPerspective.class);
@@ -386,8 +379,8 @@ public class AnalyzerVisualization extends AbstractVisualization {
 			
       createTabForBrowser(theMainBox, theController, model);
 
-      // flush the cache before opening an analyzer visualization
-      flushAnalyzerCache();
+      // flush the catalog if its model changed since it was last loaded
+      MondrianCatalogCache.getInstance().open(modelFileName);
       theController.openReport(fname);
       
       String fullPath = f.getAbsolutePath();
@@ -418,8 +411,13 @@ public class AnalyzerVisualization extends AbstractVisualization {
     Entity vizEntity = new Entity(fname, name, Type.TYPE_ANALYZER_VIEW.getId());
     registry.addEntity(vizEntity);
     
-    String modelId = wvmeta.browser.getModel().getFileName();
+    ModelerWorkspace workspace = wvmeta.browser.getModel();
+    String modelId = workspace.getFileName();
     Entity modelEntity = registry.getEntity(modelId, Type.TYPE_OLAP_MODEL.getId());
+    if( modelEntity == null && modelId != null ) {
+        // models of a Quick Visualize are only written to a file, never saved in the modeler
+        modelEntity = ModelerHelper.addModelLineage(workspace, modelId);
+    }
     if( modelEntity != null ) {
         Link link = new Link( vizEntity, Verb.VERB_USES, modelEntity );
         registry.addLink(link);
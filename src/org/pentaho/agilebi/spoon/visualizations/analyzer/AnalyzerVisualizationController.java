@@ -17,13 +17,14 @@
 
 package org.pentaho.agilebi.spoon.visualizations.analyzer;
 
-import mondrian.rolap.agg.AggregationManager;
 import org.pentaho.agilebi.modeler.util.ISpoonModelerSource;
 import org.pentaho.metadata.model.concept.types.LocalizedString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.eclipse.swt.SWTError;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Widget;
 import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
 import org.pentaho.agilebi.spoon.ModelerHelper;
@@ -37,6 +38,7 @@ import org.pentaho.di.core.EngineMetaInterface;
 import org.pentaho.di.core.database.DatabaseMeta;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.gui.SpoonFactory;
+import org.pentaho.di.core.lifecycle.pdi.AgileBILifecycleListener;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.ui.spoon.FileListener;
 import org.pentaho.di.ui.spoon.Spoon;
@@ -72,6 +74,8 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 	private XulBrowser browser;
 	private Spoon spoon;
 	private String location;
+	// a report is loaded instead of a new one
+	private boolean reportOpened;
 	private BindingFactory bf;
 	private Binding modelNameBinding;
 	private Binding factTableNameBinding;
@@ -90,7 +94,6 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 		this.visFileLocation = aVisFileLocaiton;
 		this.meta = new AnalyzerVisualizationMeta(this);
 		this.spoon = ((Spoon) SpoonFactory.getInstance());
-		this.location = visualization.generateNewUrl(xmiFileLocation, modelId);
 		this.bf = new DefaultBindingFactory();
 		this.fileName = fileName;
 	}
@@ -101,7 +104,15 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 		this.browser = (XulBrowser) this.document.getElementById("web_visualization_browser");
 		this.propPanel = (XulEditpanel) document.getElementById("propPanel");
 		
-		this.browser.setSrc(Const.NVL(this.location, "http://"));
+		// the editor's URL needs the server, which may still be booting
+		AgileBILifecycleListener.whenServerStarted(Display.getCurrent(), new Runnable() {
+		  public void run() {
+		    location = visualization.generateNewUrl(xmiFileLocation, modelId);
+		    if (!reportOpened && !isBrowserDisposed()) {
+		      browser.setSrc(Const.NVL(location, "http://"));
+		    }
+		  }
+		});
 
 		this.bf.setDocument(super.document);
 		this.bf.setBindingType(Type.ONE_WAY);
@@ -114,9 +125,23 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 		setPropVisible(false);
 	}
 	
-	public void openReport(String aReport) {
-	  String theLocation = visualization.generateOpenUrl( aReport );
-	  this.browser.setSrc(theLocation);
+	public void openReport(final String aReport) {
+	  reportOpened = true;
+	  AgileBILifecycleListener.whenServerStarted(Display.getCurrent(), new Runnable() {
+	    public void run() {
+	      if (!isBrowserDisposed()) {
+	        browser.setSrc(visualization.generateOpenUrl(aReport));
+	      }
+	    }
+	  });
+	}
+
+	/**
+	 * The tab may have been closed while waiting for the server.
+	 */
+	private boolean isBrowserDisposed() {
+	  Object managed = browser.getManagedObject();
+	  return managed instanceof Widget && ((Widget) managed).isDisposed();
 	}
 
 	private String processFactTableName() {
@@ -162,9 +187,26 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 		return visFileLocation;
 	}
 
-	public void save(String filename) {
+	public void save(final String filename) {
  		visFileLocation = filename;
- 		browser.execute(visualization.generateSaveJavascript(filename));
+ 		execute(new Runnable() {
+ 		  public void run() {
+ 		    browser.execute(visualization.generateSaveJavascript(filename));
+ 		  }
+ 		});
+	}
+
+	/**
+	 * Runs a script generator once the server started, the generators need its port.
+	 */
+	private void execute(final Runnable script) {
+	  AgileBILifecycleListener.whenServerStarted(Display.getCurrent(), new Runnable() {
+	    public void run() {
+	      if (!isBrowserDisposed()) {
+	        script.run();
+	      }
+	    }
+	  });
 	}
 
 	public void save() {
@@ -206,19 +248,26 @@ public class AnalyzerVisualizationController extends AbstractXulEventHandler imp
 	}
 
 	public void refreshData() {
-		// first clear the server cache
-
-		AggregationManager.instance().getCacheControl(null, null).flushSchemaCache();
-		browser.execute(visualization.generateRefreshDataJavascript(xmiFileLocation, modelId));
+		// first clear the cached data of this catalog, other views keep theirs
+		MondrianCatalogCache.getInstance().flushData(xmiFileLocation);
+		execute(new Runnable() {
+		  public void run() {
+		    browser.execute(visualization.generateRefreshDataJavascript(xmiFileLocation, modelId));
+		  }
+		});
 	}
 
 	public void refreshModel() {
 		// first save the view
 		// if (true) throw new UnsupportedOperationException();
 		// TODO: can we do this without requiring a "remote save"?
-		AggregationManager.instance().getCacheControl(null, null).flushSchemaCache();
+		MondrianCatalogCache.getInstance().flushModel(xmiFileLocation);
 
-		browser.execute(visualization.generateRefreshModelJavascript(xmiFileLocation, modelId));
+		execute(new Runnable() {
+		  public void run() {
+		    browser.execute(visualization.generateRefreshModelJavascript(xmiFileLocation, modelId));
+		  }
+		});
 		// "gCtrlr.repositoryBrowserController.remoteSave('"+modelId+"','tmp', '', 'xanalyzer', true)"
 
 	}
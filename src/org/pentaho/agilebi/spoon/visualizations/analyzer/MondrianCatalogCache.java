@@ -0,0 +1,325 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon.visualizations.analyzer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import mondrian.olap.CacheControl;
+import mondrian.olap.Cube;
+import mondrian.rolap.RolapConnectionProperties;
+import mondrian.rolap.RolapSchema;
+import mondrian.rolap.agg.AggregationManager;
+
+import org.apache.commons.vfs.FileChangeEvent;
+import org.apache.commons.vfs.FileListener;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.VFS;
+import org.apache.commons.vfs.impl.DefaultFileMonitor;
+import org.pentaho.agilebi.vfs.MondrianSchemaCache;
+import org.pentaho.platform.api.data.IDBDatasourceService;
+import org.pentaho.platform.api.engine.ICacheManager;
+import org.pentaho.platform.engine.core.system.PentahoSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flushes Mondrian caches one catalog at a time instead of throwing away the warmed up
+ * segments of every open Analyzer view. Catalogs are identified by the path of their XMI.
+ * The XMI files of catalogs in use are watched, a catalog is flushed as soon as its model is
+ * saved. A catalog is watched until the last view that {@link #open}ed it is
+ * {@link #close}d or its file is deleted.
+ */
+public class MondrianCatalogCache {
+
+  public static final String CATALOG_CACHE_REGION = "mondrian-catalog-cache"; //$NON-NLS-1$
+
+  private static final long WATCH_DELAY_MILLIS = 2000L;
+
+  private static Logger logger = LoggerFactory.getLogger(MondrianCatalogCache.class);
+
+  private static MondrianCatalogCache instance = new MondrianCatalogCache();
+
+  /**
+   * modification time and size of the XMI files as they were when the catalog was last loaded
+   */
+  private final ConcurrentMap<String, String> stamps = new ConcurrentHashMap<String, String>();
+
+  /**
+   * number of open views of the watched catalogs
+   */
+  private final Map<String, Integer> watched = new HashMap<String, Integer>();
+
+  private DefaultFileMonitor monitor;
+
+  private MondrianCatalogCache() {
+  }
+
+  public static MondrianCatalogCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Watches the XMI of a catalog that is about to be used and flushes the catalog if the
+   * XMI changed since it was last opened. A catalog seen for the first time or unchanged
+   * keeps its caches.
+   */
+  public void open(String xmiPath) {
+    String path = normalize(xmiPath);
+    String stamp = getStamp(path);
+    String previous = stamps.put(path, stamp);
+    if (previous != null && !previous.equals(stamp)) {
+      flushModel(path);
+    }
+    watch(path);
+  }
+
+  /**
+   * Stops watching the XMI of a catalog once no view uses it anymore. Its stamp is kept, so
+   * opening it again after it changed still flushes it.
+   */
+  public synchronized void close(String xmiPath) {
+    String path = normalize(xmiPath);
+    Integer count = watched.get(path);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      watched.put(path, count - 1);
+    } else {
+      unwatch(path);
+    }
+  }
+
+  /**
+   * Drops the cached cell data of a catalog, its schema stays loaded.
+   */
+  public void flushData(String xmiPath) {
+    CacheControl cacheControl = AggregationManager.instance().getCacheControl(null, null);
+    for (RolapSchema schema : findSchemas(normalize(xmiPath))) {
+      for (Cube cube : schema.getCubes()) {
+        cacheControl.flush(cacheControl.createMeasuresRegion(cube));
+      }
+    }
+  }
+
+  /**
+   * Drops everything cached for a catalog: the generated schema, the loaded Mondrian
+   * schema with its segments and the model's connection pool.
+   */
+  public void flushModel(String xmiPath) {
+    String path = normalize(xmiPath);
+    MondrianSchemaCache.getInstance().invalidate(path);
+
+    CacheControl cacheControl = AggregationManager.instance().getCacheControl(null, null);
+    for (RolapSchema schema : findSchemas(path)) {
+      cacheControl.flushSchema(schema);
+    }
+
+    removeCatalogDefinitions(path);
+
+    IDBDatasourceService datasourceService = PentahoSystem.get(IDBDatasourceService.class, null);
+    if (datasourceService != null) {
+      datasourceService.clearDataSource(xmiPath);
+      if (!xmiPath.equals(path)) {
+        datasourceService.clearDataSource(path);
+      }
+    }
+  }
+
+  /**
+   * Removes the catalog's definition from the platform's catalog cache. Its entries are maps
+   * of the catalogs per locale, keyed by the catalog's definition or name.
+   */
+  private static void removeCatalogDefinitions(String path) {
+    ICacheManager cacheMgr = PentahoSystem.getCacheManager(null);
+    if (cacheMgr == null) {
+      return;
+    }
+    Set<?> keys = cacheMgr.getAllKeysFromRegionCache(CATALOG_CACHE_REGION);
+    if (keys == null) {
+      return;
+    }
+    for (Object key : new ArrayList<Object>(keys)) {
+      if (key instanceof String && matchesCatalog((String) key, path)) {
+        cacheMgr.removeFromRegionCache(CATALOG_CACHE_REGION, key);
+        continue;
+      }
+      Object value = cacheMgr.getFromRegionCache(CATALOG_CACHE_REGION, key);
+      if (value instanceof Map) {
+        synchronized (value) {
+          for (Iterator<?> i = ((Map<?, ?>) value).entrySet().iterator(); i.hasNext();) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) i.next();
+            if (isCatalog(entry.getKey(), path) || isCatalog(entry.getValue(), path)) {
+              i.remove();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the object is the catalog's definition or a catalog with that definition
+   */
+  private static boolean isCatalog(Object catalog, String path) {
+    if (catalog instanceof String) {
+      return ((String) catalog).startsWith("mtm:") && matchesCatalog((String) catalog, path); //$NON-NLS-1$
+    }
+    if (catalog == null) {
+      return false;
+    }
+    try {
+      // MondrianCatalog lives in the platform's webapp
+      Object definition = catalog.getClass().getMethod("getDefinition").invoke(catalog); //$NON-NLS-1$
+      return definition instanceof String && matchesCatalog((String) definition, path);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private synchronized void watch(String path) {
+    Integer count = watched.get(path);
+    watched.put(path, count == null ? 1 : count + 1);
+    if (count != null) {
+      return;
+    }
+    try {
+      if (monitor == null) {
+        monitor = new DefaultFileMonitor(new XmiListener());
+        monitor.setDelay(WATCH_DELAY_MILLIS);
+        monitor.setRecursive(false);
+        monitor.start();
+      }
+      monitor.addFile(resolve(path));
+    } catch (Exception e) {
+      logger.warn("Could not watch model " + path, e); //$NON-NLS-1$
+    }
+  }
+
+  private synchronized void unwatch(String path) {
+    watched.remove(path);
+    if (monitor == null) {
+      return;
+    }
+    try {
+      monitor.removeFile(resolve(path));
+    } catch (Exception e) {
+      logger.warn("Could not stop watching model " + path, e); //$NON-NLS-1$
+    }
+  }
+
+  private static FileObject resolve(String path) throws Exception {
+    return VFS.getManager().resolveFile(new File(path).toURI().toString());
+  }
+
+  public synchronized void shutdown() {
+    if (monitor != null) {
+      monitor.stop();
+      monitor = null;
+    }
+    watched.clear();
+  }
+
+  private class XmiListener implements FileListener {
+
+    public void fileChanged(FileChangeEvent event) throws Exception {
+      changed(event.getFile());
+    }
+
+    public void fileCreated(FileChangeEvent event) throws Exception {
+      changed(event.getFile());
+    }
+
+    public void fileDeleted(FileChangeEvent event) throws Exception {
+      try {
+        String path = normalize(new File(event.getFile().getURL().toURI()).getPath());
+        stamps.remove(path);
+        unwatch(path);
+        flushModel(path);
+      } catch (Exception e) {
+        logger.warn("Could not flush catalog of " + event.getFile().getName(), e); //$NON-NLS-1$
+      }
+    }
+
+    private void changed(FileObject file) {
+      try {
+        String path = normalize(new File(file.getURL().toURI()).getPath());
+        String stamp = getStamp(path);
+        String previous = stamps.put(path, stamp);
+        if (previous != null && !previous.equals(stamp)) {
+          logger.info("Model " + path + " changed, flushing its catalog"); //$NON-NLS-1$ //$NON-NLS-2$
+          flushModel(path);
+        }
+      } catch (Exception e) {
+        logger.warn("Could not flush catalog of " + file.getName(), e); //$NON-NLS-1$
+      }
+    }
+  }
+
+  private static List<RolapSchema> findSchemas(String path) {
+    List<RolapSchema> matches = new ArrayList<RolapSchema>();
+    Iterator<RolapSchema> schemas = RolapSchema.getRolapSchemas();
+    while (schemas.hasNext()) {
+      RolapSchema schema = schemas.next();
+      String catalog = schema.getInternalConnection().getConnectInfo().get(RolapConnectionProperties.Catalog.name());
+      if (catalog != null && matchesCatalog(catalog, path)) {
+        matches.add(schema);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * catalogs are mtm: urls of the XMI, e.g. mtm:/home/user/models/Model 1.xmi
+   */
+  static boolean matchesCatalog(String catalog, String path) {
+    String catalogPath = catalog.replace('\\', '/');
+    if (catalogPath.startsWith("mtm:")) { //$NON-NLS-1$
+      catalogPath = catalogPath.substring(4);
+    }
+    catalogPath = stripLeadingSlashes(catalogPath);
+    String xmiPath = stripLeadingSlashes(path.replace('\\', '/'));
+    return catalogPath.equals(xmiPath) || xmiPath.endsWith("/" + catalogPath); //$NON-NLS-1$
+  }
+
+  private static String stripLeadingSlashes(String path) {
+    int i = 0;
+    while (i < path.length() && path.charAt(i) == '/') {
+      i++;
+    }
+    return path.substring(i);
+  }
+
+  private static String normalize(String xmiPath) {
+    return new File(xmiPath).getAbsolutePath();
+  }
+
+  private static String getStamp(String path) {
+    File file = new File(path);
+    return file.lastModified() + ":" + file.length(); //$NON-NLS-1$
+  }
+
+}
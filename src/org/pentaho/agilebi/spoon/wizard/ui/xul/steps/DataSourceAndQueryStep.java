@@ -17,7 +17,9 @@
 
 package org.pentaho.agilebi.spoon.wizard.ui.xul.steps;
 
+import org.pentaho.agilebi.modeler.ModelerException;
 import org.pentaho.agilebi.modeler.ModelerWorkspace;
+import org.pentaho.agilebi.spoon.ModelerHelper;
 import org.pentaho.agilebi.spoon.wizard.EmbeddedWizard;
 import org.pentaho.commons.metadata.mqleditor.MqlQuery;
 import org.pentaho.commons.metadata.mqleditor.editor.MQLEditorService;
@@ -243,6 +245,24 @@ public class DataSourceAndQueryStep extends AbstractWizardStep
   }
 
   
+  /**
+   * A temporary model is only written to a file once the report needs it.
+   * 
+   * @return the model's file or null if it could not be written, the error is reported to the user
+   */
+  private String getXmiFile()
+  {
+    try
+    {
+      return ModelerHelper.getInstance().getModelFile(model);
+    }
+    catch (ModelerException e)
+    {
+      getDesignTimeContext().userError(e);
+      return null;
+    }
+  }
+
   /* (non-Javadoc)
    * @see org.pentaho.reporting.engine.classic.wizard.ui.xul.components.AbstractWizardStep#stepActivating()
    * 
@@ -258,6 +278,13 @@ public class DataSourceAndQueryStep extends AbstractWizardStep
     
     if (model != null && df == null) {
 
+      String xmiFile = getXmiFile();
+      if (xmiFile == null) {
+        // try again when the step is activated the next time
+        setValid(false);
+        return;
+      }
+
       if (getEditorModel().getReportDefinition().getDataFactory() != null && getEditorModel().getReportDefinition().getDataFactory()
           instanceof CompoundDataFactory) {
         CompoundDataFactory cdf = (CompoundDataFactory) getEditorModel().getReportDefinition().getDataFactory();
@@ -269,7 +296,7 @@ public class DataSourceAndQueryStep extends AbstractWizardStep
       df = new PmdDataFactory();
       PmdConnectionProvider connectionProvider = new PmdConnectionProvider();
       df.setConnectionProvider(connectionProvider);
-      df.setXmiFile(model.getFileName());
+      df.setXmiFile(xmiFile);
       df.setDomainId(DEFAULT);
       getEditorModel().getReportDefinition().setDataFactory(df);
 
@@ -287,7 +314,7 @@ public class DataSourceAndQueryStep extends AbstractWizardStep
         PmdConnectionProvider connectionProvider = new PmdConnectionProvider();
         df.setConnectionProvider(connectionProvider);
         if (model != null) {
-          df.setXmiFile(model.getFileName());
+          df.setXmiFile(getXmiFile());
         }
         df.setDomainId(DEFAULT);
       }
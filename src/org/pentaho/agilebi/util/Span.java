@@ -0,0 +1,123 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Times a phase of work. Spans started while another span is open on the same thread are
+ * nested in it; the durations are added to the {@link SpanSummary} and a finished top level
+ * span logs its nested spans at detailed level.
+ * 
+ * <pre>
+ * Span span = Span.start("modeler.populateModel");
+ * try {
+ *   ...
+ * } finally {
+ *   span.end();
+ * }
+ * </pre>
+ */
+public final class Span {
+
+  private static LogChannelInterface log = new LogChannel("AgileBI Timing"); //$NON-NLS-1$
+
+  private static final ThreadLocal<Span> current = new ThreadLocal<Span>();
+
+  private final String name;
+
+  private final Span parent;
+
+  private final long start;
+
+  private long durationNanos = -1;
+
+  private List<Span> children;
+
+  private Span(String name, Span parent) {
+    this.name = name;
+    this.parent = parent;
+    this.start = System.nanoTime();
+  }
+
+  public static Span start(String name) {
+    Span span = new Span(name, current.get());
+    current.set(span);
+    return span;
+  }
+
+  /**
+   * Ends the span, a span is only recorded once.
+   */
+  public void end() {
+    if (durationNanos >= 0) {
+      return;
+    }
+    durationNanos = System.nanoTime() - start;
+    current.set(parent);
+    SpanSummary.getInstance().record(getPath(), durationNanos);
+
+    if (parent != null) {
+      if (parent.children == null) {
+        parent.children = new ArrayList<Span>();
+      }
+      parent.children.add(this);
+    } else if (log.isDetailed()) {
+      StringBuilder sb = new StringBuilder();
+      append(sb);
+      log.logDetailed(sb.toString());
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the names of the enclosing spans and this one, separated by /
+   */
+  public String getPath() {
+    return parent == null ? name : parent.getPath() + "/" + name; //$NON-NLS-1$
+  }
+
+  /**
+   * @return the duration in milliseconds, -1 while the span is open
+   */
+  public long getDurationMillis() {
+    return durationNanos < 0 ? -1 : durationNanos / 1000000L;
+  }
+
+  private void append(StringBuilder sb) {
+    sb.append(name).append(' ').append(getDurationMillis()).append("ms"); //$NON-NLS-1$
+    if (children != null) {
+      sb.append(" ["); //$NON-NLS-1$
+      for (int i = 0; i < children.size(); i++) {
+        if (i > 0) {
+          sb.append(", "); //$NON-NLS-1$
+        }
+        children.get(i).append(sb);
+      }
+      sb.append(']');
+    }
+  }
+
+}
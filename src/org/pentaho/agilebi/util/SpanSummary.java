@@ -0,0 +1,121 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+/**
+ * Count, total and maximum duration of the {@link Span}s by path. Every
+ * AGILEBI_TIMING_SUMMARY_SECONDS (system property, default 300, 0 turns it off) the spans
+ * recorded since the last summary are logged and the counters start over.
+ */
+public class SpanSummary {
+
+  public static final String SUMMARY_SECONDS_PROPERTY = "AGILEBI_TIMING_SUMMARY_SECONDS"; //$NON-NLS-1$
+
+  public static final int DEFAULT_SUMMARY_SECONDS = 300;
+
+  private static LogChannelInterface log = new LogChannel("AgileBI Timing"); //$NON-NLS-1$
+
+  private static SpanSummary instance = new SpanSummary(Const.toInt(System.getProperty(SUMMARY_SECONDS_PROPERTY),
+      DEFAULT_SUMMARY_SECONDS));
+
+  private volatile ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+  SpanSummary(int summarySeconds) {
+    if (summarySeconds > 0) {
+      final long interval = summarySeconds * 1000L;
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          while (true) {
+            try {
+              Thread.sleep(interval);
+            } catch (InterruptedException e) {
+              return;
+            }
+            logSummary();
+          }
+        }
+      }, "agilebi-timing-summary"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  public static SpanSummary getInstance() {
+    return instance;
+  }
+
+  void record(String path, long durationNanos) {
+    ConcurrentMap<String, Stats> current = stats;
+    Stats s = current.get(path);
+    if (s == null) {
+      Stats created = new Stats();
+      s = current.putIfAbsent(path, created);
+      if (s == null) {
+        s = created;
+      }
+    }
+    s.add(durationNanos);
+  }
+
+  /**
+   * Logs the spans recorded since the last summary and starts over.
+   */
+  public void logSummary() {
+    ConcurrentMap<String, Stats> recorded = stats;
+    stats = new ConcurrentHashMap<String, Stats>();
+    if (recorded.isEmpty()) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder("Timing summary (count, total, max):"); //$NON-NLS-1$
+    for (Map.Entry<String, Stats> entry : new TreeMap<String, Stats>(recorded).entrySet()) {
+      Stats s = entry.getValue();
+      sb.append(Const.CR).append("  ").append(entry.getKey()).append(": ").append(s.count.get()).append(", ") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+          .append(s.totalNanos.get() / 1000000L).append("ms, ").append(s.maxNanos.get() / 1000000L).append("ms"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    log.logBasic(sb.toString());
+  }
+
+  private static class Stats {
+
+    final AtomicLong count = new AtomicLong();
+
+    final AtomicLong totalNanos = new AtomicLong();
+
+    final AtomicLong maxNanos = new AtomicLong();
+
+    void add(long nanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+    }
+  }
+
+}
@@ -17,13 +17,11 @@
 
 package org.pentaho.agilebi.vfs;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.cert.Certificate;
-import java.util.Locale;
+import java.util.Collections;
 import java.util.Map;
 
 import org.apache.commons.vfs.FileContent;
@@ -31,14 +29,17 @@ import org.apache.commons.vfs.FileContentInfo;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.RandomAccessContent;
+import org.apache.commons.vfs.impl.DefaultFileContentInfo;
 import org.apache.commons.vfs.util.RandomAccessMode;
-import org.pentaho.metadata.model.Domain;
-import org.pentaho.metadata.model.LogicalModel;
-import org.pentaho.metadata.util.MondrianModelExporter;
-import org.pentaho.metadata.util.XmiParser;
+import org.pentaho.agilebi.util.Span;
 
 public class MetadataToMondrianVfsFileContent implements FileContent {
 
+  /**
+   * SHA-1 of the XMI the schema is generated from
+   */
+  public static final String CONTENT_HASH_ATTRIBUTE = "contentHash"; //$NON-NLS-1$
+
   private MetadataToMondrianVfsFileObject fileObject;
 
   private InputStream inputStream = null;
@@ -54,14 +55,19 @@ public class MetadataToMondrianVfsFileContent implements FileContent {
     return fileObject;
   }
 
+  /**
+   * @return the length of the generated schema in bytes
+   */
   public long getSize() throws FileSystemException {
-    // not needed for our usage
-    return 0;
+    return getSchema().getLength();
   }
 
+  /**
+   * @return the modification time of the XMI the schema is generated from, so that catalog
+   *         caches can tell the schema didn't change without reading it
+   */
   public long getLastModifiedTime() throws FileSystemException {
-    // not needed for our usage
-    return 0;
+    return new File(fileObject.getFileRef()).lastModified();
   }
 
   public void setLastModifiedTime(final long arg0) throws FileSystemException {
@@ -70,24 +76,24 @@ public class MetadataToMondrianVfsFileContent implements FileContent {
   }
 
   public boolean hasAttribute(final String attrName) {
-    return false;
+    return CONTENT_HASH_ATTRIBUTE.equals(attrName);
   }
 
   public void removeAttribute(final String attrName) {
   }
 
   public Map getAttributes() throws FileSystemException {
-    // not needed for our usage
-    return null;
+    return Collections.singletonMap(CONTENT_HASH_ATTRIBUTE, getSchema().getContentHash());
   }
 
   public String[] getAttributeNames() throws FileSystemException {
-    // not needed for our usage
-    return null;
+    return new String[] { CONTENT_HASH_ATTRIBUTE };
   }
 
-  public Object getAttribute(final String arg0) throws FileSystemException {
-    // not needed for our usage
+  public Object getAttribute(final String attrName) throws FileSystemException {
+    if (CONTENT_HASH_ATTRIBUTE.equals(attrName)) {
+      return getSchema().getContentHash();
+    }
     return null;
   }
 
@@ -103,33 +109,23 @@ public class MetadataToMondrianVfsFileContent implements FileContent {
 
   public InputStream getInputStream() throws FileSystemException {
 
+    Span span = Span.start("mtm.getInputStream"); //$NON-NLS-1$
     try {
-      // read in stream, generate mondrian model, write out stream.
-      XmiParser parser = new XmiParser();
-      FileInputStream fis = new FileInputStream(new File(fileObject.getFileRef()));
-      Domain domain = parser.parseXmi(fis);
-      String locale = Locale.getDefault().toString();
-      if (domain.getLocales().size() > 0) {
-        locale = domain.getLocales().get(0).getCode();
-      }
-      
-      if (domain.getLogicalModels().size() == 0) {
-        throw new Exception("Domain " + fileObject.getFileRef() + " does not contain model.");
-      }
-
-      LogicalModel lModel = domain.getLogicalModels().get(0);
-      if(domain.getLogicalModels().size() > 1) {
-        lModel = domain.getLogicalModels().get(1);
-      }
-      MondrianModelExporter exporter = new MondrianModelExporter(lModel, locale);
-      String mondrianSchema = exporter.createMondrianModelXML();
+      inputStream = getSchema().openStream();
+    } finally {
+      span.end();
+    }
+    isOpen = true;
+    return inputStream;
+  }
 
-      inputStream = new ByteArrayInputStream(mondrianSchema.getBytes());
+  private MondrianSchema getSchema() throws FileSystemException {
+    try {
+      // the schema is only generated again when the XMI changed
+      return MondrianSchemaCache.getInstance().getSchema(new File(fileObject.getFileRef()));
     } catch (Exception e) {
       throw new FileSystemException(e.getLocalizedMessage(), e);
     }
-    isOpen = true;
-    return inputStream;
   }
 
   public OutputStream getOutputStream() throws FileSystemException {
@@ -164,8 +160,7 @@ public class MetadataToMondrianVfsFileContent implements FileContent {
   }
 
   public FileContentInfo getContentInfo() throws FileSystemException {
-    // not needed for our usage
-    return null;
+    return new DefaultFileContentInfo("text/xml", "UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
   }
 
   public boolean isOpen() {
@@ -0,0 +1,88 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.vfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * A Mondrian schema generated from a metadata XMI file, kept as UTF-8 encoded bytes
+ * together with the state of the XMI it was generated from.
+ */
+public class MondrianSchema {
+
+  private final String xmiPath;
+
+  private final long xmiLastModified;
+
+  private final long xmiSize;
+
+  private final String contentHash;
+
+  private final byte[] schema;
+
+  MondrianSchema(String xmiPath, long xmiLastModified, long xmiSize, String contentHash, byte[] schema) {
+    this.xmiPath = xmiPath;
+    this.xmiLastModified = xmiLastModified;
+    this.xmiSize = xmiSize;
+    this.contentHash = contentHash;
+    this.schema = schema;
+  }
+
+  /**
+   * @return a copy of this schema for an XMI file that was touched but didn't change
+   */
+  MondrianSchema withXmiState(long lastModified, long size) {
+    return new MondrianSchema(xmiPath, lastModified, size, contentHash, schema);
+  }
+
+  boolean matches(long lastModified, long size) {
+    return xmiLastModified == lastModified && xmiSize == size;
+  }
+
+  public String getXmiPath() {
+    return xmiPath;
+  }
+
+  public long getXmiLastModified() {
+    return xmiLastModified;
+  }
+
+  public long getXmiSize() {
+    return xmiSize;
+  }
+
+  /**
+   * @return the SHA-1 of the XMI file's content, as hex
+   */
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * @return the length of the UTF-8 encoded schema in bytes
+   */
+  public int getLength() {
+    return schema.length;
+  }
+
+  public InputStream openStream() {
+    return new ByteArrayInputStream(schema);
+  }
+
+}
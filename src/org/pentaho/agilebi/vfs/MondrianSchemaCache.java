@@ -0,0 +1,222 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.vfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.util.XmiParser;
+
+/**
+ * Caches the Mondrian schemas generated by the mtm: provider. Mondrian reopens catalogs
+ * often (every cache flush), so the schema is only regenerated when the XMI file changes.
+ * A file whose modification time or size changed is hashed first, a touched but otherwise
+ * unchanged file keeps its schema.
+ * 
+ * The cache holds at most {@link #getMaxEntries()} schemas, least recently used first out.
+ * Concurrent requests for a schema that is being generated wait for that generation.
+ * Schemas that aren't in memory are looked up in the {@link MondrianSchemaDiskCache}
+ * before they are generated.
+ */
+public class MondrianSchemaCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 32;
+
+  private static final MondrianSchemaCache instance = new MondrianSchemaCache(DEFAULT_MAX_ENTRIES);
+
+  static {
+    instance.setDiskCache(new MondrianSchemaDiskCache());
+  }
+
+  private volatile int maxEntries;
+
+  private volatile MondrianSchemaDiskCache diskCache;
+
+  private final Map<String, MondrianSchema> schemas;
+
+  private final ConcurrentMap<String, FutureTask<MondrianSchema>> loading = new ConcurrentHashMap<String, FutureTask<MondrianSchema>>();
+
+  public MondrianSchemaCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.schemas = new LinkedHashMap<String, MondrianSchema>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, MondrianSchema> eldest) {
+        return size() > MondrianSchemaCache.this.maxEntries;
+      }
+    };
+  }
+
+  public static MondrianSchemaCache getInstance() {
+    return instance;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  public MondrianSchemaDiskCache getDiskCache() {
+    return diskCache;
+  }
+
+  /**
+   * Sets the on disk cache consulted before generating a schema, null turns it off.
+   */
+  public void setDiskCache(MondrianSchemaDiskCache diskCache) {
+    this.diskCache = diskCache;
+  }
+
+  /**
+   * Returns the Mondrian schema for a metadata XMI file, generating it when the file isn't
+   * cached or has changed.
+   */
+  public MondrianSchema getSchema(File xmiFile) throws Exception {
+    final String path = xmiFile.getAbsolutePath();
+    final long lastModified = xmiFile.lastModified();
+    final long size = xmiFile.length();
+
+    MondrianSchema schema = get(path);
+    if (schema != null && schema.matches(lastModified, size)) {
+      return schema;
+    }
+
+    FutureTask<MondrianSchema> task = new FutureTask<MondrianSchema>(new Callable<MondrianSchema>() {
+      public MondrianSchema call() throws Exception {
+        return load(path, lastModified, size);
+      }
+    });
+    FutureTask<MondrianSchema> running = loading.putIfAbsent(path, task);
+    if (running == null) {
+      running = task;
+      try {
+        task.run();
+      } finally {
+        loading.remove(path, task);
+      }
+    }
+
+    try {
+      return running.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  public void invalidate(String xmiPath) {
+    synchronized (schemas) {
+      schemas.remove(new File(xmiPath).getAbsolutePath());
+    }
+  }
+
+  public void clear() {
+    synchronized (schemas) {
+      schemas.clear();
+    }
+  }
+
+  private MondrianSchema get(String path) {
+    synchronized (schemas) {
+      return schemas.get(path);
+    }
+  }
+
+  private void put(MondrianSchema schema) {
+    synchronized (schemas) {
+      schemas.put(schema.getXmiPath(), schema);
+    }
+  }
+
+  private MondrianSchema load(String path, long lastModified, long size) throws Exception {
+    MondrianSchema cached = get(path);
+    if (cached != null && cached.matches(lastModified, size)) {
+      // generated while we were waiting to get in
+      return cached;
+    }
+
+    byte[] xmi = readFile(path);
+    String contentHash = sha1(xmi);
+
+    MondrianSchema schema;
+    if (cached != null && cached.getContentHash().equals(contentHash)) {
+      schema = cached.withXmiState(lastModified, size);
+    } else {
+      MondrianSchemaDiskCache disk = diskCache;
+      byte[] bytes = disk == null ? null : disk.read(contentHash);
+      if (bytes == null) {
+        bytes = generateSchema(path, xmi);
+        if (disk != null) {
+          disk.write(contentHash, bytes);
+        }
+      }
+      schema = new MondrianSchema(path, lastModified, size, contentHash, bytes);
+    }
+    put(schema);
+    return schema;
+  }
+
+  private static byte[] generateSchema(String path, byte[] xmi) throws Exception {
+    XmiParser parser = new XmiParser();
+    Domain domain = parser.parseXmi(new ByteArrayInputStream(xmi));
+    // schemas are usually a fraction of the size of the XMI
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(8192, xmi.length / 4));
+    MondrianSchemaExport.write(domain, path, out);
+    return out.toByteArray();
+  }
+
+  private static byte[] readFile(String path) throws IOException {
+    FileInputStream fis = new FileInputStream(path);
+    try {
+      return IOUtils.toByteArray(fis);
+    } finally {
+      fis.close();
+    }
+  }
+
+  public static String sha1(byte[] bytes) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+    byte[] hash = digest.digest(bytes);
+    StringBuilder sb = new StringBuilder(hash.length * 2);
+    for (byte b : hash) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,194 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.vfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+import org.apache.commons.io.IOUtils;
+import org.pentaho.di.core.Const;
+import org.pentaho.metadata.util.MondrianModelExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps generated Mondrian schemas on disk so they survive a restart of Spoon. Files are
+ * content addressed: the name is a hash of the XMI's content hash, the exporter version
+ * and the default locale, so a changed model or an upgraded exporter simply misses and old
+ * files age out. The directory is shared by every Spoon session of the user.
+ */
+public class MondrianSchemaDiskCache {
+
+  public static final String CACHE_FOLDER = "agilebi-schema-cache"; //$NON-NLS-1$
+
+  private static final String EXTENSION = ".mondrian.xml"; //$NON-NLS-1$
+
+  public static final int DEFAULT_MAX_FILES = 200;
+
+  private static Logger logger = LoggerFactory.getLogger(MondrianSchemaDiskCache.class);
+
+  private final File directory;
+
+  private final int maxFiles;
+
+  private final String exporterVersion;
+
+  public MondrianSchemaDiskCache() {
+    this(new File(Const.getKettleDirectory(), CACHE_FOLDER), DEFAULT_MAX_FILES);
+  }
+
+  public MondrianSchemaDiskCache(File directory, int maxFiles) {
+    this.directory = directory;
+    this.maxFiles = maxFiles;
+    this.exporterVersion = getExporterVersion();
+  }
+
+  /**
+   * @return the cached schema for an XMI with the given content hash, or null
+   */
+  public byte[] read(String contentHash) {
+    File file = getFile(contentHash);
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      FileInputStream fis = new FileInputStream(file);
+      try {
+        byte[] schema = IOUtils.toByteArray(fis);
+        // keeps recently used schemas from being pruned
+        file.setLastModified(System.currentTimeMillis());
+        return schema;
+      } finally {
+        fis.close();
+      }
+    } catch (IOException e) {
+      logger.warn("Could not read cached schema " + file, e); //$NON-NLS-1$
+      return null;
+    }
+  }
+
+  /**
+   * Stores a schema, written to a temporary file first and renamed so that other sessions
+   * never see a partial file.
+   */
+  public void write(String contentHash, byte[] schema) {
+    File file = getFile(contentHash);
+    File tmp = null;
+    try {
+      directory.mkdirs();
+      tmp = File.createTempFile("schema", ".tmp", directory); //$NON-NLS-1$ //$NON-NLS-2$
+      FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        fos.write(schema);
+      } finally {
+        fos.close();
+      }
+      if (!tmp.renameTo(file)) {
+        // windows doesn't rename over an existing file. the name is content addressed, so
+        // if another session wrote it in the meantime it holds the same schema
+        if (!file.exists()) {
+          logger.warn("Could not store cached schema " + file); //$NON-NLS-1$
+        }
+      }
+      prune();
+    } catch (IOException e) {
+      logger.warn("Could not store cached schema " + file, e); //$NON-NLS-1$
+    } finally {
+      if (tmp != null && tmp.exists()) {
+        tmp.delete();
+      }
+    }
+  }
+
+  public void clear() {
+    File[] files = listCacheFiles();
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
+  private void prune() {
+    File[] files = listCacheFiles();
+    if (files.length <= maxFiles) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        long diff = f1.lastModified() - f2.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    for (int i = 0; i < files.length - maxFiles; i++) {
+      files[i].delete();
+    }
+  }
+
+  private File[] listCacheFiles() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+    int n = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(EXTENSION)) {
+        files[n++] = file;
+      }
+    }
+    return Arrays.copyOf(files, n);
+  }
+
+  File getFile(String contentHash) {
+    String key = contentHash + '|' + exporterVersion + '|' + Locale.getDefault();
+    try {
+      return new File(directory, MondrianSchemaCache.sha1(key.getBytes("UTF-8")) + EXTENSION); //$NON-NLS-1$
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Identifies the exporter build, snapshot jars don't change their version so the size and
+   * date of the jar are taken into account as well.
+   */
+  private static String getExporterVersion() {
+    StringBuilder version = new StringBuilder();
+    Package pkg = MondrianModelExporter.class.getPackage();
+    if (pkg != null && pkg.getImplementationVersion() != null) {
+      version.append(pkg.getImplementationVersion());
+    }
+    try {
+      CodeSource codeSource = MondrianModelExporter.class.getProtectionDomain().getCodeSource();
+      URL location = codeSource == null ? null : codeSource.getLocation();
+      if (location != null && "file".equals(location.getProtocol())) { //$NON-NLS-1$
+        File jar = new File(location.toURI());
+        version.append('|').append(jar.length()).append('|').append(jar.lastModified());
+      }
+    } catch (Exception e) {
+      // the implementation version will have to do
+    }
+    return version.toString();
+  }
+
+}
@@ -0,0 +1,85 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.vfs;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalModel;
+import org.pentaho.metadata.util.MondrianModelExporter;
+
+/**
+ * Writes the Mondrian schema of a logical model as UTF-8 straight to a stream, so callers
+ * don't need a byte[] copy of the schema string or depend on the platform charset.
+ * <p>
+ * {@link MondrianModelExporter} only produces a String, so the schema itself is still
+ * built in memory once; streaming it would need a streaming exporter in pentaho-metadata.
+ */
+public class MondrianSchemaExport {
+
+  public static final String ENCODING = "UTF-8"; //$NON-NLS-1$
+
+  private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"; //$NON-NLS-1$
+
+  private MondrianSchemaExport() {
+  }
+
+  /**
+   * Writes the schema of the analysis model of a domain, using the domain's first locale.
+   * The stream is flushed but not closed.
+   * 
+   * @param domain the domain to export
+   * @param ref the XMI the domain was read from, for error messages
+   */
+  public static void write(Domain domain, String ref, OutputStream out) throws Exception {
+    String locale = Locale.getDefault().toString();
+    if (domain.getLocales().size() > 0) {
+      locale = domain.getLocales().get(0).getCode();
+    }
+
+    if (domain.getLogicalModels().size() == 0) {
+      throw new Exception("Domain " + ref + " does not contain model.");
+    }
+
+    LogicalModel lModel = domain.getLogicalModels().get(0);
+    if (domain.getLogicalModels().size() > 1) {
+      lModel = domain.getLogicalModels().get(1);
+    }
+    write(lModel, locale, out);
+  }
+
+  /**
+   * Writes the schema of a logical model. The stream is flushed but not closed.
+   */
+  public static void write(LogicalModel model, String locale, OutputStream out) throws Exception {
+    MondrianModelExporter exporter = new MondrianModelExporter(model, locale);
+    String mondrianSchema = exporter.createMondrianModelXML();
+
+    Writer writer = new OutputStreamWriter(out, ENCODING);
+    if (!mondrianSchema.startsWith("<?xml")) { //$NON-NLS-1$
+      // declare the encoding we write in
+      writer.write(XML_DECLARATION);
+    }
+    writer.write(mondrianSchema);
+    writer.flush();
+  }
+
+}
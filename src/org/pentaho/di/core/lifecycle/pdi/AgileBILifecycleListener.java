@@ -17,7 +17,16 @@
 
 package org.pentaho.di.core.lifecycle.pdi;
 
-import java.net.Socket;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.ObjectUtils.Null;
 import org.apache.commons.vfs.VFS;
@@ -25,14 +34,22 @@ import org.apache.commons.vfs.impl.DefaultFileSystemManager;
 import org.eclipse.swt.widgets.Display;
 import org.pentaho.agilebi.modeler.util.ModelerSourceFactory;
 import org.pentaho.agilebi.platform.JettyServer;
+import org.pentaho.agilebi.registry.JournalRegistry;
 import org.pentaho.agilebi.spoon.KettleModelerSource;
+import org.pentaho.agilebi.spoon.LineageCacheRefresher;
 import org.pentaho.agilebi.spoon.OutputStepModelerSource;
+import org.pentaho.agilebi.spoon.PlatformWarmUp;
+import org.pentaho.agilebi.spoon.TemporaryModelStore;
 import org.pentaho.agilebi.spoon.perspective.AgileBiInstaPerspective;
 import org.pentaho.agilebi.spoon.perspective.AgileBiModelerPerspective;
 import org.pentaho.agilebi.spoon.perspective.AgileBiSpoonInstaPlugin;
 import org.pentaho.agilebi.spoon.visualizations.IVisualization;
 import org.pentaho.agilebi.spoon.visualizations.VisualizationManager;
+import org.pentaho.agilebi.spoon.visualizations.analyzer.MondrianCatalogCache;
+import org.pentaho.agilebi.util.Span;
+import org.pentaho.agilebi.util.SpanSummary;
 import org.pentaho.agilebi.vfs.MetadataToMondrianVfs;
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.annotations.LifecyclePlugin;
 import org.pentaho.di.core.gui.GUIOption;
 import org.pentaho.di.core.gui.SpoonFactory;
@@ -43,15 +60,35 @@ import org.pentaho.di.core.logging.LogChannel;
 import org.pentaho.di.core.plugins.PluginClassTypeMapping;
 import org.pentaho.di.ui.core.PropsUI;
 import org.pentaho.di.ui.spoon.Spoon;
+import org.pentaho.metadata.registry.IMetadataRegistry;
+import org.pentaho.metadata.registry.RegistryFactory;
 import org.pentaho.platform.api.engine.IPluginManager;
 import org.pentaho.platform.engine.core.system.PentahoSystem;
 
 @LifecyclePlugin(id = "AgileBiPlugin")
 @PluginClassTypeMapping(classTypes = { GUIOption.class }, implementationClass = { Null.class })
 public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Object> {
-  public static int consolePort;
+  /**
+   * System property (can be set in kettle.properties) with the port of the embedded server,
+   * 0 binds an ephemeral port
+   */
+  public static final String PORT_PROPERTY = "AGILEBI_SERVER_PORT"; //$NON-NLS-1$
 
-  private JettyServer server = null;
+  public static final int DEFAULT_PORT = 10000;
+
+  public static volatile int consolePort;
+
+  /**
+   * System property (can be set in kettle.properties), Y defers starting the embedded server
+   * until a visualization or perspective first needs it
+   */
+  public static final String LAZY_START_PROPERTY = "AGILEBI_LAZY_START"; //$NON-NLS-1$
+
+  private static volatile FutureTask<JettyServer> serverStart;
+
+  private static final AtomicBoolean serverStartRequested = new AtomicBoolean();
+
+  private volatile JettyServer server = null;
 
   private boolean showTips;
 
@@ -69,73 +106,231 @@ public class AgileBILifecycleListener implements LifecycleListener, GUIOption<Ob
       props.setRepositoriesDialogAtStartupShown(false);
     }
 
-    new Thread(new Runnable() {
+    // the boot phases only wait for the phases they depend on
+    ExecutorService boot = Executors.newFixedThreadPool(2, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
 
-      @Override
-      public void run() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "agilebi-boot-" + count.incrementAndGet()); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    final Future<?> vfsRegistered = boot.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        LogChannel.GENERAL.logBasic("Starting agile-bi");
+        Span span = Span.start("agilebi.registerVfs"); //$NON-NLS-1$
         try {
-          LogChannel.GENERAL.logBasic("Starting agile-bi");
           // because we're outside of the default classpath,
           // META-INF/providers.xml is not loaded, so instead,
           // we register our VFS provider programmatically
           ((DefaultFileSystemManager) VFS.getManager()).addProvider("mtm", new MetadataToMondrianVfs());
+        } finally {
+          span.end();
+        }
+        return null;
+      }
+    });
 
-          int port = 9999;
-          boolean portFound = false;
-          int tries = 100;
-          while (portFound == false && tries > 0) {
-            port++;
-            tries--;
-            Socket sock = null;
-            try {
-              sock = new Socket("localhost", port);
-            } catch (Exception e) {
-              portFound = true;
-            } finally {
-              if (sock != null) {
-                sock.close();
-              }
-            }
-          }
-          if (!portFound) {
-            throw new IllegalStateException("Could not find an open port to start the Agile-BI server on");
-          }
+    serverStart = new FutureTask<JettyServer>(new Callable<JettyServer>() {
+      public JettyServer call() throws Exception {
+        Span span = Span.start("agilebi.startServer"); //$NON-NLS-1$
+        try {
+          server = new JettyServer("localhost", Const.toInt(System.getProperty(PORT_PROPERTY), DEFAULT_PORT)); //$NON-NLS-1$
+          AgileBILifecycleListener.consolePort = server.open();
 
-          AgileBILifecycleListener.consolePort = port;
-          server = new JettyServer("localhost", port); //$NON-NLS-1$
+          // the webapp resolves its catalogs through the mtm provider
+          vfsRegistered.get();
           server.startServer();
+        } finally {
+          span.end();
+        }
+        return server;
+      }
+    });
+
+    boot.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        try {
+          // Instaview runs inside the platform the webapp boots, in lazy mode this waits
+          // until a visualization or the perspective needs the server
+          startWarmUp(serverStart.get());
 
           // Only initialize the Instaview perspective if the Instaview plugin is registered
           if (AgileBiSpoonInstaPlugin.isInstaviewRegistered(PentahoSystem.get(IPluginManager.class))) {
-            AgileBiInstaPerspective.getInstance().onStart();
+            Span span = Span.start("agilebi.instaview"); //$NON-NLS-1$
+            try {
+              AgileBiInstaPerspective.getInstance().onStart();
+            } finally {
+              span.end();
+            }
           }
         } catch (Exception e) {
-          e.printStackTrace();
+          LogChannel.GENERAL.logError("Could not start agile-bi", e); //$NON-NLS-1$
         }
+        return null;
+      }
+    });
+    boot.shutdown();
 
-        Display.getDefault().asyncExec(new Runnable() {
+    boolean instaviewStartup = AgileBiInstaPerspective.PERSPECTIVE_ID.equals(spoon.getStartupPerspective());
+    if (!"Y".equalsIgnoreCase(System.getProperty(LAZY_START_PROPERTY)) || instaviewStartup) { //$NON-NLS-1$
+      startServer();
+    }
 
-          @Override
-          public void run() {
-            ModelerSourceFactory.registerSourceType(OutputStepModelerSource.OUTPUTSTEP_SOURCE_TYPE,
-                OutputStepModelerSource.class);
-            ModelerSourceFactory.registerSourceType(KettleModelerSource.SOURCE_TYPE, KettleModelerSource.class);
-            if (SpoonFactory.getInstance() != null) { // condition if for unit testing
-              ((Spoon) SpoonFactory.getInstance()).addFileListener(AgileBiModelerPerspective.getInstance());
+    // the source types and file listeners don't depend on the server
+    Display.getDefault().asyncExec(new Runnable() {
 
-              for (IVisualization viz : VisualizationManager.getInstance().getVisualizations()) {
-                ((Spoon) SpoonFactory.getInstance()).addFileListener(viz);
-              }
+      @Override
+      public void run() {
+        Span span = Span.start("agilebi.registerSources"); //$NON-NLS-1$
+        try {
+          ModelerSourceFactory.registerSourceType(OutputStepModelerSource.OUTPUTSTEP_SOURCE_TYPE,
+              OutputStepModelerSource.class);
+          ModelerSourceFactory.registerSourceType(KettleModelerSource.SOURCE_TYPE, KettleModelerSource.class);
+          if (SpoonFactory.getInstance() != null) { // condition if for unit testing
+            ((Spoon) SpoonFactory.getInstance()).addFileListener(AgileBiModelerPerspective.getInstance());
+
+            for (IVisualization viz : VisualizationManager.getInstance().getVisualizations()) {
+              ((Spoon) SpoonFactory.getInstance()).addFileListener(viz);
             }
+
+            LineageCacheRefresher.getInstance().start(Display.getCurrent());
           }
-        });
+        } finally {
+          span.end();
+        }
+      }
+    });
+  }
+
+  /**
+   * Warms up the recently used models, a failure doesn't affect the started server.
+   */
+  private static void startWarmUp(JettyServer server) {
+    try {
+      if (server.getConfig().isWarmUp()) {
+        PlatformWarmUp warmUp = new PlatformWarmUp(server.getPort(), Spoon.getInstance().getProperties().getLastUsedFiles());
+        warmUp.setOpenConnections(server.getConfig().isWarmUpConnections());
+        warmUp.start();
+      }
+    } catch (RuntimeException e) {
+      LogChannel.GENERAL.logError("Could not warm up the embedded platform", e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Starts the embedded server in the background unless it is already started or starting.
+   * 
+   * @return completes when the server accepts requests, null if the plugin wasn't started
+   */
+  public static Future<JettyServer> startServer() {
+    FutureTask<JettyServer> start = serverStart;
+    if (start != null && serverStartRequested.compareAndSet(false, true)) {
+      Thread thread = new Thread(start, "agilebi-server-start"); //$NON-NLS-1$
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return start;
+  }
+
+  /**
+   * @return true once the embedded server accepts requests, false while it is starting or if
+   *         it failed to start
+   */
+  public static boolean isServerStarted() {
+    FutureTask<JettyServer> start = serverStart;
+    if (start == null || !start.isDone() || start.isCancelled()) {
+      return false;
+    }
+    try {
+      // done, doesn't block
+      start.get();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the embedded server was started and failed
+   */
+  public static boolean isServerFailed() {
+    FutureTask<JettyServer> start = serverStart;
+    return start != null && start.isDone() && !isServerStarted();
+  }
+
+  /**
+   * Port of the embedded server, starts the server and waits for it if needed. URLs pointing
+   * to the server must use this rather than {@link #consolePort}. On the UI thread only call
+   * it from a task passed to {@link #whenServerStarted(Display, Runnable)}.
+   */
+  public static int getConsolePort() {
+    Future<JettyServer> start = startServer();
+    if (start != null) {
+      try {
+        return start.get().getPort();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        LogChannel.GENERAL.logError("Could not start agile-bi", e.getCause()); //$NON-NLS-1$
       }
-    }).start();
+    }
+    return consolePort;
+  }
+
+  /**
+   * Runs the task on the display's thread once the embedded server accepts requests, right
+   * away if it already does. The wait happens in the background so the UI stays responsive
+   * while the platform boots; the task also runs if the server failed to start.
+   */
+  public static void whenServerStarted(final Display display, final Runnable task) {
+    if (isServerStarted() || isServerFailed() || serverStart == null) {
+      task.run();
+      return;
+    }
+    final Future<JettyServer> start = startServer();
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          start.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          LogChannel.GENERAL.logError("Could not start agile-bi", e.getCause()); //$NON-NLS-1$
+        }
+        if (!display.isDisposed()) {
+          display.asyncExec(task);
+        }
+      }
+    }, "agilebi-server-wait"); //$NON-NLS-1$
+    thread.setDaemon(true);
+    thread.start();
   }
 
   public void onExit(LifeEventHandler arg0) throws LifecycleException {
-    server.stopServer();
+    if (server != null) {
+      server.stopServer();
+    }
+    LineageCacheRefresher.getInstance().shutdown();
+    MondrianCatalogCache.getInstance().shutdown();
+    SpanSummary.getInstance().logSummary();
+
+    // write lineage that is still waiting to be committed
+    IMetadataRegistry registry = RegistryFactory.getInstance().getMetadataRegistry();
+    if (registry instanceof JournalRegistry) {
+      try {
+        ((JournalRegistry) registry).close();
+      } catch (IOException e) {
+        LogChannel.GENERAL.logError("Could not write lineage journal", e); //$NON-NLS-1$
+      }
+    }
     AgileBiInstaPerspective.getInstance().shutdown();
+    TemporaryModelStore.getInstance().shutdown();
 
     // reset tooltips and the repositories dialog
     Spoon spoon = Spoon.getInstance();
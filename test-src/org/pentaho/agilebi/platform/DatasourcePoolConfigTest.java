@@ -0,0 +1,103 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Properties;
+
+import org.junit.Test;
+import org.pentaho.di.core.database.DatabaseInterface;
+import org.pentaho.di.core.database.DatabaseMeta;
+
+public class DatasourcePoolConfigTest {
+
+  @Test
+  public void testDefaultsWithoutConnectionPooling() {
+    DatasourcePoolConfig defaults = new DatasourcePoolConfig();
+    DatabaseMeta databaseMeta = mock(DatabaseMeta.class);
+    when(databaseMeta.isUsingConnectionPool()).thenReturn(false);
+
+    DatasourcePoolConfig config = defaults.forDatabaseMeta(databaseMeta);
+    assertEquals(defaults.getMaxActive(), config.getMaxActive());
+    assertEquals(defaults.getMaxWait(), config.getMaxWait());
+    assertFalse(config.isTestOnBorrow());
+    assertTrue(config.isTestWhileIdle());
+    assertNull(config.getValidationQuery());
+  }
+
+  @Test
+  public void testConnectionPoolingOverridesDefaults() {
+    DatasourcePoolConfig defaults = new DatasourcePoolConfig();
+    Properties props = new Properties();
+    props.setProperty(DatasourcePoolConfig.MAX_WAIT, "1000");
+    props.setProperty(DatasourcePoolConfig.VALIDATION_QUERY, "select 1 from dual");
+    props.setProperty(DatasourcePoolConfig.TEST_ON_BORROW, "true");
+    props.setProperty(DatasourcePoolConfig.MIN_IDLE, "not a number");
+
+    DatabaseMeta databaseMeta = mock(DatabaseMeta.class);
+    when(databaseMeta.isUsingConnectionPool()).thenReturn(true);
+    when(databaseMeta.getMaximumPoolSize()).thenReturn(20);
+    when(databaseMeta.getInitialPoolSize()).thenReturn(3);
+    when(databaseMeta.getConnectionPoolingProperties()).thenReturn(props);
+
+    DatasourcePoolConfig config = defaults.forDatabaseMeta(databaseMeta);
+    assertEquals(20, config.getMaxActive());
+    assertEquals(3, config.getInitialSize());
+    assertEquals(1000L, config.getMaxWait());
+    assertEquals(defaults.getMinIdle(), config.getMinIdle());
+    assertEquals("select 1 from dual", config.getValidationQuery());
+    assertTrue(config.isTestOnBorrow());
+
+    // the defaults are left alone
+    assertEquals(8, defaults.getMaxActive());
+    assertNull(defaults.getValidationQuery());
+  }
+
+  @Test
+  public void testWarmUpSizeIsBoundedByMaxActive() {
+    DatasourcePoolConfig config = new DatasourcePoolConfig();
+    config.setInitialSize(2);
+    config.setMinIdle(6);
+    config.setMaxActive(4);
+    assertEquals(4, config.getWarmUpSize());
+  }
+
+  @Test
+  public void testDialectValidationQuery() {
+    assertEquals("SELECT 1 FROM DUAL", ValidatingPoolableConnectionFactory.getDialectValidationQuery(mockDatabase("ORACLE")));
+    assertEquals("SELECT 1 FROM SYSIBM.SYSDUMMY1", ValidatingPoolableConnectionFactory.getDialectValidationQuery(mockDatabase("DB2")));
+    assertEquals("VALUES 1", ValidatingPoolableConnectionFactory.getDialectValidationQuery(mockDatabase("DERBY")));
+    assertEquals("SELECT 1", ValidatingPoolableConnectionFactory.getDialectValidationQuery(mockDatabase("MYSQL")));
+    assertEquals("SELECT 1", ValidatingPoolableConnectionFactory.getDialectValidationQuery(null));
+  }
+
+  private DatabaseMeta mockDatabase(String pluginId) {
+    DatabaseInterface databaseInterface = mock(DatabaseInterface.class);
+    when(databaseInterface.getPluginId()).thenReturn(pluginId);
+    DatabaseMeta databaseMeta = mock(DatabaseMeta.class);
+    when(databaseMeta.getDatabaseInterface()).thenReturn(databaseInterface);
+    return databaseMeta;
+  }
+
+}
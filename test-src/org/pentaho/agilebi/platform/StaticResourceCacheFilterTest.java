@@ -0,0 +1,182 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.platform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class StaticResourceCacheFilterTest {
+
+  /**
+   * Serves a fixed body and counts the requests that got through.
+   */
+  private static class Chain implements FilterChain {
+
+    private int requests;
+
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+      requests++;
+      response.getOutputStream().write("alert(1);".getBytes("UTF-8"));
+    }
+  }
+
+  private static HttpServletRequest request(String uri, String query, String ifNoneMatch) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getRequestURI()).thenReturn("/pentaho" + uri);
+    when(request.getServletPath()).thenReturn(uri);
+    when(request.getQueryString()).thenReturn(query);
+    when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+    return request;
+  }
+
+  private static HttpServletResponse response(final ByteArrayOutputStream body) throws IOException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        body.write(b);
+      }
+    });
+    return response;
+  }
+
+  private static String getETag(HttpServletResponse response) {
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+    return etag.getValue();
+  }
+
+  @Test
+  public void dynamicContentIsNotCached() throws Exception {
+    StaticResourceCacheFilter filter = new StaticResourceCacheFilter();
+    HttpServletResponse response = response(new ByteArrayOutputStream());
+    Chain chain = new Chain();
+    filter.doFilter(request("/api/repos/xanalyzer/editor", null, null), response, chain);
+
+    assertEquals(1, chain.requests);
+    verify(response).setHeader("Cache-Control", "no-cache");
+    verify(response, never()).setHeader(eq("ETag"), anyString());
+  }
+
+  @Test
+  public void unversionedResourceIsRevalidated() throws Exception {
+    StaticResourceCacheFilter filter = new StaticResourceCacheFilter();
+    Chain chain = new Chain();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    HttpServletResponse response = response(body);
+    filter.doFilter(request("/js/app.js", null, null), response, chain);
+
+    assertEquals("alert(1);", body.toString("UTF-8"));
+    verify(response).setHeader("Cache-Control", "no-cache");
+    verify(response).setHeader("Vary", "Accept-Encoding");
+    String etag = getETag(response);
+    assertTrue(etag.startsWith("W/"));
+
+    // not a file, so it is rendered again and compared with the new body
+    HttpServletResponse notModified = response(new ByteArrayOutputStream());
+    filter.doFilter(request("/js/app.js", null, etag), notModified, chain);
+    verify(notModified).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(2, chain.requests);
+
+    // a changed body gets through despite the old ETag
+    body.reset();
+    HttpServletResponse modified = response(body);
+    filter.doFilter(request("/js/app.js", null, etag), modified, new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+        response.getOutputStream().write("alert(2);".getBytes("UTF-8"));
+      }
+    });
+    verify(modified, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals("alert(2);", body.toString("UTF-8"));
+  }
+
+  @Test
+  public void versionedResourceIsCachedLong() throws Exception {
+    StaticResourceCacheFilter filter = new StaticResourceCacheFilter(600);
+    HttpServletResponse response = response(new ByteArrayOutputStream());
+    filter.doFilter(request("/js/app.js", "v=5.0.1", null), response, new Chain());
+
+    verify(response).setHeader("Cache-Control", "public, max-age=600");
+    assertTrue(StaticResourceCacheFilter.isVersioned(request("/js/app.js", "locale=en&build=42", null)));
+    assertFalse(StaticResourceCacheFilter.isVersioned(request("/js/app.js", "v=", null)));
+    assertFalse(StaticResourceCacheFilter.isVersioned(request("/js/app.js", "locale=en", null)));
+  }
+
+  @Test
+  public void fileETagFollowsTheFile() throws Exception {
+    File file = File.createTempFile("app", ".js");
+    try {
+      FileWriter writer = new FileWriter(file);
+      writer.write("alert(1);");
+      writer.close();
+
+      ServletContext servletContext = mock(ServletContext.class);
+      when(servletContext.getRealPath("/js/app.js")).thenReturn(file.getAbsolutePath());
+      FilterConfig filterConfig = mock(FilterConfig.class);
+      when(filterConfig.getServletContext()).thenReturn(servletContext);
+      StaticResourceCacheFilter filter = new StaticResourceCacheFilter();
+      filter.init(filterConfig);
+
+      Chain chain = new Chain();
+      HttpServletResponse response = response(new ByteArrayOutputStream());
+      filter.doFilter(request("/js/app.js", null, null), response, chain);
+      String etag = getETag(response);
+      assertEquals(1, chain.requests);
+
+      HttpServletResponse notModified = response(new ByteArrayOutputStream());
+      filter.doFilter(request("/js/app.js", null, etag), notModified, chain);
+      verify(notModified).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      assertEquals(1, chain.requests);
+
+      // an upgraded file gets a new ETag
+      file.setLastModified(file.lastModified() - 60000);
+      HttpServletResponse upgraded = response(new ByteArrayOutputStream());
+      filter.doFilter(request("/js/app.js", null, etag), upgraded, chain);
+      verify(upgraded, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      assertEquals(2, chain.requests);
+    } finally {
+      file.delete();
+    }
+  }
+}
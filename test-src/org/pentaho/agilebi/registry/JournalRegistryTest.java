@@ -0,0 +1,184 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.registry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.OrderedFileRegistry;
+import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.Verb;
+
+public class JournalRegistryTest {
+
+  private File journal;
+
+  private File legacy;
+
+  @Before
+  public void setUp() throws Exception {
+    journal = File.createTempFile("lineage", ".journal");
+    journal.delete();
+    legacy = File.createTempFile("registry", ".xml");
+    legacy.delete();
+  }
+
+  @After
+  public void tearDown() {
+    journal.delete();
+    legacy.delete();
+  }
+
+  @Test
+  public void escaping() throws Exception {
+    String[] fields = { "E", "c:\\models\\a.xmi", "tab\there", "line\nbreak\r", "" };
+    String record = JournalRegistry.join(fields);
+    assertFalse(record.contains("\n"));
+    assertEquals(5, record.split("\t", -1).length);
+    assertArrayEquals(fields, JournalRegistry.split(record));
+
+    JournalRegistry registry = new JournalRegistry(journal, null);
+    registry.init();
+    registry.addEntity(new Entity("c:\\models\\a.xmi", "tab\there\nand there", Type.TYPE_OLAP_MODEL.getId()));
+    registry.commit();
+
+    JournalRegistry replayed = new JournalRegistry(journal, null);
+    replayed.init();
+    assertEquals("tab\there\nand there", replayed.getEntity("c:\\models\\a.xmi", Type.TYPE_OLAP_MODEL.getId())
+        .getTitle());
+  }
+
+  @Test
+  public void compaction() throws Exception {
+    JournalRegistry registry = new JournalRegistry(journal, null);
+    registry.init();
+    for (int i = 0; i < 3; i++) {
+      registry.addEntity(new Entity("sales.xmi", "Sales " + i, Type.TYPE_OLAP_MODEL.getId()));
+      registry.commit();
+    }
+    // the third record makes the journal more than twice as long as the registry
+    assertEquals(1, countRecords());
+
+    registry.addEntity(new Entity("sales.xmi", "Sales 3", Type.TYPE_OLAP_MODEL.getId()));
+    registry.commit();
+    assertEquals(2, countRecords());
+    assertFalse(new File(journal.getPath() + ".tmp").exists());
+
+    JournalRegistry replayed = new JournalRegistry(journal, null);
+    replayed.init();
+    assertEquals("Sales 3", replayed.getEntity("sales.xmi", Type.TYPE_OLAP_MODEL.getId()).getTitle());
+    assertEquals(1, replayed.getEntitiesOfType(Type.TYPE_OLAP_MODEL.getId()).size());
+  }
+
+  @Test
+  public void removal() throws Exception {
+    JournalRegistry registry = new JournalRegistry(journal, null);
+    registry.init();
+    Entity table = new Entity("db~sales", "sales", Type.TYPE_PHYSICAL_TABLE.getId());
+    Entity model = new Entity("sales.xmi", "Sales", Type.TYPE_OLAP_MODEL.getId());
+    Entity view = new Entity("sales.xanalyzer", "Sales view", Type.TYPE_ANALYZER_VIEW.getId());
+    registry.addEntity(table);
+    registry.addEntity(model);
+    registry.addEntity(view);
+    registry.addLink(new Link(model, Verb.VERB_USES, table));
+    registry.addLink(new Link(view, Verb.VERB_USES, model));
+    registry.commit();
+
+    registry.removeEntity(model);
+    assertTrue(registry.getLinks().isEmpty());
+    assertTrue(registry.getLinksTo("db~sales", Type.TYPE_PHYSICAL_TABLE.getId()).isEmpty());
+    registry.commit();
+
+    JournalRegistry replayed = new JournalRegistry(journal, null);
+    replayed.init();
+    assertEquals(null, replayed.getEntity("sales.xmi", Type.TYPE_OLAP_MODEL.getId()));
+    assertTrue(replayed.getLinks().isEmpty());
+    assertEquals(2, replayed.getEntitiesById("db~sales").size() + replayed.getEntitiesById("sales.xanalyzer").size());
+  }
+
+  @Test
+  public void invalidRecords() throws Exception {
+    Writer writer = new FileWriter(journal);
+    writer.write(JournalRegistry.join("E", "sales.xmi", "Sales", Type.TYPE_OLAP_MODEL.getId()) + "\n");
+    writer.write(JournalRegistry.join("L", "sales.xmi", Type.TYPE_OLAP_MODEL.getId(), "unknown", "db~sales",
+        Type.TYPE_PHYSICAL_TABLE.getId()) + "\n");
+    writer.write("L\tsales.xmi\n");
+    writer.close();
+
+    JournalRegistry registry = new JournalRegistry(journal, null);
+    registry.init();
+    assertNotNull(registry.getEntity("sales.xmi", Type.TYPE_OLAP_MODEL.getId()));
+    assertTrue(registry.getLinks().isEmpty());
+  }
+
+  @Test
+  public void legacyImport() throws Exception {
+    OrderedFileRegistry old = new OrderedFileRegistry();
+    old.setFilePath(legacy.getAbsolutePath());
+    Entity table = new Entity("db~sales", "sales", Type.TYPE_PHYSICAL_TABLE.getId());
+    Entity model = new Entity("sales.xmi", "Sales", Type.TYPE_OLAP_MODEL.getId());
+    Entity unlinked = new Entity("other.xmi", "Other", Type.TYPE_OLAP_MODEL.getId());
+    old.addEntity(table);
+    old.addEntity(model);
+    old.addEntity(unlinked);
+    old.addLink(new Link(model, Verb.VERB_USES, table));
+    old.commit();
+
+    JournalRegistry registry = new JournalRegistry(journal, legacy);
+    registry.init();
+    assertEquals(1, registry.getLinks().size());
+    assertEquals("Sales", registry.getEntity("sales.xmi", Type.TYPE_OLAP_MODEL.getId()).getTitle());
+    assertEquals("Other", registry.getEntity("other.xmi", Type.TYPE_OLAP_MODEL.getId()).getTitle());
+    assertTrue(journal.exists());
+
+    // the journal is used from now on
+    legacy.delete();
+    JournalRegistry replayed = new JournalRegistry(journal, legacy);
+    replayed.init();
+    assertEquals(1, replayed.getLinksTo("db~sales", Type.TYPE_PHYSICAL_TABLE.getId()).size());
+    assertEquals(2, replayed.getEntitiesOfType(Type.TYPE_OLAP_MODEL.getId()).size());
+  }
+
+  private int countRecords() throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(journal));
+    try {
+      int count = 0;
+      while (reader.readLine() != null) {
+        count++;
+      }
+      return count;
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.registry;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.IMetadataRegistry;
+import org.pentaho.metadata.registry.Link;
+import org.pentaho.metadata.registry.SimpleRegistry;
+import org.pentaho.metadata.registry.Type;
+import org.pentaho.metadata.registry.Verb;
+
+public class LineageGraphTest {
+
+  private static void populate(IMetadataRegistry registry) {
+    Entity trans = new Entity("repo~load.ktr", "load", Type.TYPE_TRANSFORMATION.getId());
+    Entity table = new Entity("db~schema~sales", "sales", Type.TYPE_PHYSICAL_TABLE.getId());
+    Entity other = new Entity("db~schema~other", "other", Type.TYPE_PHYSICAL_TABLE.getId());
+    Entity model = new Entity("sales.xmi", "Sales", Type.TYPE_OLAP_MODEL.getId());
+    Entity otherModel = new Entity("other.xmi", "Other", Type.TYPE_OLAP_MODEL.getId());
+    Entity view = new Entity("sales.xanalyzer", "Sales view", Type.TYPE_ANALYZER_VIEW.getId());
+    registry.addEntity(trans);
+    registry.addEntity(table);
+    registry.addEntity(other);
+    registry.addEntity(model);
+    registry.addEntity(otherModel);
+    registry.addEntity(view);
+    registry.addLink(new Link(trans, Verb.VERB_POPULATES, table));
+    registry.addLink(new Link(model, Verb.VERB_USES, table));
+    registry.addLink(new Link(otherModel, Verb.VERB_USES, other));
+    registry.addLink(new Link(view, Verb.VERB_USES, model));
+  }
+
+  private static void assertImpact(IMetadataRegistry registry) {
+    LineageGraph graph = new LineageGraph(registry);
+    List<Entity> impact = graph.getImpact("repo~load.ktr", Type.TYPE_TRANSFORMATION.getId(), null);
+    assertEquals(3, impact.size());
+    assertEquals("db~schema~sales", impact.get(0).getId());
+    assertEquals("sales.xmi", impact.get(1).getId());
+    assertEquals("sales.xanalyzer", impact.get(2).getId());
+
+    List<Entity> models = graph.getImpact("repo~load.ktr", Type.TYPE_TRANSFORMATION.getId(), Type.TYPE_OLAP_MODEL.getId());
+    assertEquals(1, models.size());
+    assertEquals("sales.xmi", models.get(0).getId());
+
+    List<Entity> dependencies = graph.getDependencies("sales.xmi", Type.TYPE_OLAP_MODEL.getId());
+    assertEquals(1, dependencies.size());
+    assertEquals("db~schema~sales", dependencies.get(0).getId());
+  }
+
+  @Test
+  public void impact() throws Exception {
+    IMetadataRegistry registry = new SimpleRegistry() {
+      @Override
+      protected void load() throws Exception {
+      }
+
+      @Override
+      public void commit() throws Exception {
+      }
+    };
+    populate(registry);
+    assertImpact(registry);
+  }
+
+  @Test
+  public void impact_journal() throws Exception {
+    File journal = File.createTempFile("lineage", ".journal");
+    journal.delete();
+    try {
+      JournalRegistry registry = new JournalRegistry(journal, null);
+      registry.init();
+      populate(registry);
+      registry.addLink(new Link(registry.getEntity("sales.xmi", Type.TYPE_OLAP_MODEL.getId()), Verb.VERB_USES,
+          registry.getEntity("db~schema~sales", Type.TYPE_PHYSICAL_TABLE.getId())));
+      assertEquals(4, registry.getLinks().size());
+      registry.commit();
+
+      JournalRegistry replayed = new JournalRegistry(journal, null);
+      replayed.init();
+      assertEquals(4, replayed.getLinks().size());
+      assertEquals("Sales", replayed.getEntity("sales.xmi", Type.TYPE_OLAP_MODEL.getId()).getTitle());
+      assertEquals(2, replayed.getEntitiesOfType(Type.TYPE_PHYSICAL_TABLE.getId()).size());
+      assertImpact(replayed);
+    } finally {
+      journal.delete();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.pentaho.metadata.registry.Entity;
+import org.pentaho.metadata.registry.Type;
+
+public class WriteBehindRegistryTest {
+
+  @Test
+  public void commitsAreWrittenBehind() throws Exception {
+    File journal = File.createTempFile("lineage", ".journal");
+    journal.delete();
+    try {
+      WriteBehindRegistry registry = new WriteBehindRegistry(journal, null);
+      registry.setDelayMillis(60000);
+      registry.init();
+      registry.addEntity(new Entity("sales.xmi", "Sales", Type.TYPE_OLAP_MODEL.getId()));
+      registry.commit();
+      registry.addEntity(new Entity("other.xmi", "Other", Type.TYPE_OLAP_MODEL.getId()));
+      registry.commit();
+      assertFalse(journal.exists());
+
+      registry.close();
+      assertTrue(journal.exists());
+      JournalRegistry replayed = new JournalRegistry(journal, null);
+      replayed.init();
+      assertEquals(2, replayed.getEntitiesOfType(Type.TYPE_OLAP_MODEL.getId()).size());
+    } finally {
+      journal.delete();
+    }
+  }
+
+  @Test
+  public void maxDelay() throws Exception {
+    File journal = File.createTempFile("lineage", ".journal");
+    journal.delete();
+    try {
+      WriteBehindRegistry registry = new WriteBehindRegistry(journal, null);
+      registry.setDelayMillis(60000);
+      registry.setMaxDelayMillis(10);
+      registry.init();
+      registry.addEntity(new Entity("sales.xmi", "Sales", Type.TYPE_OLAP_MODEL.getId()));
+      registry.commit();
+      for (int i = 0; i < 100 && !journal.exists(); i++) {
+        Thread.sleep(20);
+      }
+      assertTrue(journal.exists());
+      registry.close();
+    } finally {
+      journal.delete();
+    }
+  }
+}
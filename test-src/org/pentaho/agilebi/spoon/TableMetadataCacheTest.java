@@ -0,0 +1,119 @@
+/*!
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License, version 2.1 as published by the Free Software
+* Foundation.
+*
+* You should have received a copy of the GNU Lesser General Public License along with this
+* program; if not, you can obtain a copy at http://www.gnu.org/licenses/old-licenses/lgpl-2.1.html
+* or from the Free Software Foundation, Inc.,
+* 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+*
+* This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+* without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+* See the GNU Lesser General Public License for more details.
+*
+* Copyright (c) 2002-2013 Pentaho Corporation..  All rights reserved.
+*/
+
+package org.pentaho.agilebi.spoon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.pentaho.agilebi.modeler.ModelerException;
+import org.pentaho.agilebi.modeler.util.TableModelerSource;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.metadata.model.Domain;
+import org.pentaho.metadata.model.LogicalModel;
+
+public class TableMetadataCacheTest {
+
+  /**
+   * Counts the domains it generates instead of reading the database.
+   */
+  private static class CountingCache extends TableMetadataCache {
+
+    private int generated;
+
+    CountingCache(long ttlMillis, int maxEntries) {
+      super(ttlMillis, maxEntries, null);
+    }
+
+    @Override
+    protected Domain generateDomain(TableModelerSource source) throws ModelerException {
+      generated++;
+      LogicalModel model = new LogicalModel();
+      model.setId("BV_MODEL_1");
+      Domain domain = new Domain();
+      domain.setId(source.getTableName());
+      domain.addLogicalModel(model);
+      return domain;
+    }
+  }
+
+  private static TableModelerSource source(String table, String url) throws Exception {
+    DatabaseMeta databaseMeta = mock(DatabaseMeta.class);
+    when(databaseMeta.getName()).thenReturn("warehouse");
+    when(databaseMeta.getXML()).thenReturn("<connection><url>" + url + "</url></connection>");
+    return new TableModelerSource(databaseMeta, table, "public");
+  }
+
+  @Test
+  public void cached() throws Exception {
+    CountingCache cache = new CountingCache(60000, 10);
+    TableModelerSource source = source("sales", "jdbc:h2:mem:a");
+    assertNotNull(cache.getDomain(source));
+    assertNotNull(cache.getDomain(source));
+    assertEquals(1, cache.generated);
+  }
+
+  @Test
+  public void expired() throws Exception {
+    CountingCache cache = new CountingCache(1, 10);
+    TableModelerSource source = source("sales", "jdbc:h2:mem:a");
+    cache.getDomain(source);
+    Thread.sleep(20);
+    cache.getDomain(source);
+    assertEquals(2, cache.generated);
+  }
+
+  @Test
+  public void connectionChanged() throws Exception {
+    CountingCache cache = new CountingCache(60000, 10);
+    cache.getDomain(source("sales", "jdbc:h2:mem:a"));
+    cache.getDomain(source("sales", "jdbc:h2:mem:b"));
+    assertEquals(2, cache.generated);
+  }
+
+  @Test
+  public void invalidate() throws Exception {
+    CountingCache cache = new CountingCache(60000, 10);
+    TableModelerSource sales = source("sales", "jdbc:h2:mem:a");
+    TableModelerSource customers = source("customers", "jdbc:h2:mem:a");
+    cache.getDomain(sales);
+    cache.getDomain(customers);
+
+    cache.refresh(sales);
+    assertEquals(1, cache.size());
+    cache.getDomain(sales);
+    cache.getDomain(customers);
+    assertEquals(3, cache.generated);
+  }
+
+  @Test
+  public void bounded() throws Exception {
+    CountingCache cache = new CountingCache(60000, 2);
+    TableModelerSource sales = source("sales", "jdbc:h2:mem:a");
+    cache.getDomain(sales);
+    cache.getDomain(source("customers", "jdbc:h2:mem:a"));
+    // sales is used last, products pushes out customers
+    cache.getDomain(sales);
+    cache.getDomain(source("products", "jdbc:h2:mem:a"));
+    assertEquals(2, cache.size());
+    cache.getDomain(sales);
+    assertEquals(3, cache.generated);
+  }
+}
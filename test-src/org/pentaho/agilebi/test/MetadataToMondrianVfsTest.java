@@ -17,16 +17,22 @@
 
 package org.pentaho.agilebi.test;
 
+import java.io.File;
 import java.io.InputStream;
 
 import junit.framework.Assert;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemManager;
 import org.apache.commons.vfs.VFS;
 import org.apache.commons.vfs.impl.DefaultFileSystemManager;
 import org.junit.Test;
 import org.pentaho.agilebi.vfs.MetadataToMondrianVfs;
+import org.pentaho.agilebi.vfs.MetadataToMondrianVfsFileContent;
+import org.pentaho.agilebi.vfs.MondrianSchema;
+import org.pentaho.agilebi.vfs.MondrianSchemaCache;
+import org.pentaho.agilebi.vfs.MondrianSchemaDiskCache;
 
 @SuppressWarnings("nls")
 public class MetadataToMondrianVfsTest {
@@ -47,5 +53,54 @@ public class MetadataToMondrianVfsTest {
     in.close();
     String results = buf.toString();
     Assert.assertTrue(results.indexOf("<Cube name=\"customer2 Table\">") >= 0);
+
+    Assert.assertEquals(new File("test-res/example_olap.xmi").lastModified(), fobj.getContent().getLastModifiedTime());
+    Assert.assertEquals(results.length(), fobj.getContent().getSize());
+    Assert.assertEquals("text/xml", fobj.getContent().getContentInfo().getContentType());
+    Assert.assertNotNull(fobj.getContent().getAttribute(MetadataToMondrianVfsFileContent.CONTENT_HASH_ATTRIBUTE));
+  }
+
+  @Test
+  public void testSchemaCache() throws Exception {
+    File xmi = File.createTempFile("schema-cache", ".xmi");
+    xmi.deleteOnExit();
+    FileUtils.copyFile(new File("test-res/example_olap.xmi"), xmi);
+
+    MondrianSchemaCache cache = new MondrianSchemaCache(2);
+    MondrianSchema schema = cache.getSchema(xmi);
+    Assert.assertTrue(schema.getLength() > 0);
+    Assert.assertSame(schema, cache.getSchema(xmi));
+
+    // touching the file doesn't regenerate the schema
+    xmi.setLastModified(xmi.lastModified() + 10000);
+    MondrianSchema touched = cache.getSchema(xmi);
+    Assert.assertEquals(schema.getContentHash(), touched.getContentHash());
+    Assert.assertEquals(xmi.lastModified(), touched.getXmiLastModified());
+    Assert.assertSame(touched, cache.getSchema(xmi));
+
+    cache.invalidate(xmi.getPath());
+    Assert.assertNotSame(touched, cache.getSchema(xmi));
+  }
+
+  @Test
+  public void testSchemaDiskCache() throws Exception {
+    File dir = File.createTempFile("schema-disk-cache", "");
+    dir.delete();
+    dir.mkdirs();
+    try {
+      MondrianSchemaDiskCache disk = new MondrianSchemaDiskCache(dir, 1);
+      Assert.assertNull(disk.read("hash1"));
+
+      disk.write("hash1", "<Schema/>".getBytes("UTF-8"));
+      Assert.assertEquals("<Schema/>", new String(disk.read("hash1"), "UTF-8"));
+
+      // over the limit, the least recently used schema is pruned
+      new File(dir, dir.list()[0]).setLastModified(System.currentTimeMillis() - 100000);
+      disk.write("hash2", "<Schema name=\"2\"/>".getBytes("UTF-8"));
+      Assert.assertNull(disk.read("hash1"));
+      Assert.assertNotNull(disk.read("hash2"));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
   }
 }